@@ -18,6 +18,7 @@ CREATE TABLE "users" (
     -- Fields required for Email OTP Login Flow
     "otpCode" VARCHAR(6),
     "otpExpiry" TIMESTAMP WITH TIME ZONE,
+    "otpAttempts" INTEGER NOT NULL DEFAULT 0, -- Wrong codes entered for the current OTP (framework.otp.store=db)
 
     -- Audit Fields
     "last_login_at" TIMESTAMP WITH TIME ZONE,
@@ -79,6 +80,9 @@ CREATE TABLE "dma_assessment" (
 -- Index for efficient access to the assessment data JSON fields
 CREATE INDEX idx_dma_assessment_json_gin ON "dma_assessment" USING GIN ("assessmentDetailJson");
 CREATE INDEX idx_dma_assessment_msme ON "dma_assessment" ("msmeId");
+-- Keyset pagination of an auditor's assessments, newest first, with and without a status filter
+CREATE INDEX idx_dma_assessment_auditor_date ON "dma_assessment" ("auditorId", "completionDate", "assessmentId");
+CREATE INDEX idx_dma_assessment_auditor_status_date ON "dma_assessment" ("auditorId", "status", "completionDate", "assessmentId");
 
 
 ---
@@ -101,3 +105,84 @@ CREATE TABLE "anchor_record" (
 
 -- Index for fast blockchain verification lookups
 CREATE INDEX idx_anchor_txid ON "anchor_record" ("blockchainTxId");
+
+---
+-- 5. API Keys Table (Credentials for partner integrations on /api/v1/client/*)
+---
+CREATE TABLE "api_keys" (
+    "id" UUID PRIMARY KEY,
+    "name" VARCHAR(255) NOT NULL,
+    "secret_hash" CHAR(64) NOT NULL, -- Lowercase hex SHA-256 of the API secret; the secret itself is never stored
+    "status" VARCHAR(10) NOT NULL DEFAULT 'ACTIVE' CHECK ("status" IN ('ACTIVE', 'REVOKED')),
+    "created_at" TIMESTAMP WITH TIME ZONE NOT NULL DEFAULT NOW()
+);
+
+-- The service caches API keys in memory, including the keys it found missing; notify it whenever a key is added, changed or removed
+CREATE OR REPLACE FUNCTION notify_api_key_change() RETURNS TRIGGER AS $$
+BEGIN
+    IF TG_OP <> 'INSERT' THEN
+        PERFORM pg_notify('api_keys_changed', OLD."id"::text);
+    END IF;
+    IF TG_OP = 'INSERT' OR (TG_OP = 'UPDATE' AND NEW."id" <> OLD."id") THEN
+        PERFORM pg_notify('api_keys_changed', NEW."id"::text);
+    END IF;
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER trg_api_keys_changed
+    AFTER INSERT OR UPDATE OR DELETE ON "api_keys"
+    FOR EACH ROW EXECUTE FUNCTION notify_api_key_change();
+
+---
+-- 6. Platform Statistics (Maintained incrementally when assessments are anchored and verified)
+---
+CREATE TABLE "platform_stats" (
+    "type" VARCHAR(10) PRIMARY KEY CHECK ("type" IN ('DMA', 'CMA')),
+    "anchoredCount" BIGINT NOT NULL DEFAULT 0,
+    "anchoredScoreSum" NUMERIC(14, 2) NOT NULL DEFAULT 0,
+    "scoreHistogram" BIGINT[] NOT NULL DEFAULT '{0,0,0,0,0,0,0,0,0,0}', -- Anchored scores in 10-point buckets, last bucket open-ended
+    "updatedAt" TIMESTAMP WITH TIME ZONE
+);
+
+INSERT INTO "platform_stats" ("type") VALUES ('DMA'), ('CMA');
+
+CREATE TABLE "verification_stats" (
+    "month" DATE PRIMARY KEY, -- First day of the month
+    "verifications" BIGINT NOT NULL DEFAULT 0
+);
+
+---
+-- 7. Re-scoring Checkpoints (Progress of bulk re-scoring against a template, one row per template)
+---
+CREATE TABLE "rescore_checkpoint" (
+    "template" VARCHAR(64) PRIMARY KEY, -- e.g. 'dma-v1'
+    "lastAssessmentId" BIGINT NOT NULL DEFAULT 0, -- Every assessment up to this ID has been re-scored
+    "processed" BIGINT NOT NULL DEFAULT 0,
+    "updated" BIGINT NOT NULL DEFAULT 0,
+    "failed" BIGINT NOT NULL DEFAULT 0,
+    "startedAt" TIMESTAMP WITH TIME ZONE,
+    "updatedAt" TIMESTAMP WITH TIME ZONE,
+    "completedAt" TIMESTAMP WITH TIME ZONE -- NULL while a run is unfinished
+);
+
+---
+-- 8. Email Outbox (Mail committed with the change it belongs to, sent by the outbox relay)
+---
+CREATE TABLE "email_outbox" (
+    "id" BIGSERIAL PRIMARY KEY,
+    "recipient" VARCHAR(255) NOT NULL,
+    "name" VARCHAR(255) NOT NULL DEFAULT '',
+    "subject" VARCHAR(255) NOT NULL,
+    "htmlBody" TEXT, -- Cleared once the message is sent or given up on
+    "status" VARCHAR(20) NOT NULL DEFAULT 'PENDING', -- PENDING, SENT, FAILED, EXPIRED
+    "attempts" INTEGER NOT NULL DEFAULT 0,
+    "nextAttemptAt" TIMESTAMP WITH TIME ZONE NOT NULL DEFAULT NOW(), -- Also the lease on a claimed row
+    "expiresAt" TIMESTAMP WITH TIME ZONE, -- Not sent after this (e.g. when the OTP it carries expires)
+    "lastError" VARCHAR(500),
+    "createdAt" TIMESTAMP WITH TIME ZONE NOT NULL DEFAULT NOW(),
+    "sentAt" TIMESTAMP WITH TIME ZONE
+);
+
+-- The relay only ever looks for due PENDING rows
+CREATE INDEX idx_email_outbox_due ON "email_outbox" ("nextAttemptAt") WHERE status = 'PENDING';
@@ -0,0 +1,34 @@
+-- Migrates an existing api_keys table from the plaintext "key_value" column to "secret_hash",
+-- the lowercase hex SHA-256 of the secret that ApiKeyCache compares against (see init.sql, section 5).
+-- Existing secrets keep working; partners do not need new keys. Requires PostgreSQL 11+ for sha256().
+-- Run once against a database created before secret_hash was introduced.
+
+BEGIN;
+
+ALTER TABLE "api_keys" ADD COLUMN IF NOT EXISTS "secret_hash" CHAR(64);
+
+UPDATE "api_keys" SET "secret_hash" = encode(sha256(convert_to("key_value", 'UTF8')), 'hex')
+WHERE "secret_hash" IS NULL;
+
+ALTER TABLE "api_keys" ALTER COLUMN "secret_hash" SET NOT NULL;
+ALTER TABLE "api_keys" DROP COLUMN "key_value";
+
+-- The service caches API keys in memory, including the keys it found missing; notify it whenever a key is added, changed or removed
+CREATE OR REPLACE FUNCTION notify_api_key_change() RETURNS TRIGGER AS $$
+BEGIN
+    IF TG_OP <> 'INSERT' THEN
+        PERFORM pg_notify('api_keys_changed', OLD."id"::text);
+    END IF;
+    IF TG_OP = 'INSERT' OR (TG_OP = 'UPDATE' AND NEW."id" <> OLD."id") THEN
+        PERFORM pg_notify('api_keys_changed', NEW."id"::text);
+    END IF;
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS trg_api_keys_changed ON "api_keys";
+CREATE TRIGGER trg_api_keys_changed
+    AFTER INSERT OR UPDATE OR DELETE ON "api_keys"
+    FOR EACH ROW EXECUTE FUNCTION notify_api_key_change();
+
+COMMIT;
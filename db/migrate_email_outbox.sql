@@ -0,0 +1,25 @@
+-- Adds the email outbox (see init.sql, section 8) to a database created before it existed.
+-- request_otp queues its email here in the same transaction that issues the OTP, so without this
+-- table no one can log in. Run before the new version is deployed. Safe to run again.
+
+BEGIN;
+
+CREATE TABLE IF NOT EXISTS "email_outbox" (
+    "id" BIGSERIAL PRIMARY KEY,
+    "recipient" VARCHAR(255) NOT NULL,
+    "name" VARCHAR(255) NOT NULL DEFAULT '',
+    "subject" VARCHAR(255) NOT NULL,
+    "htmlBody" TEXT, -- Cleared once the message is sent or given up on
+    "status" VARCHAR(20) NOT NULL DEFAULT 'PENDING', -- PENDING, SENT, FAILED, EXPIRED
+    "attempts" INTEGER NOT NULL DEFAULT 0,
+    "nextAttemptAt" TIMESTAMP WITH TIME ZONE NOT NULL DEFAULT NOW(), -- Also the lease on a claimed row
+    "expiresAt" TIMESTAMP WITH TIME ZONE, -- Not sent after this (e.g. when the OTP it carries expires)
+    "lastError" VARCHAR(500),
+    "createdAt" TIMESTAMP WITH TIME ZONE NOT NULL DEFAULT NOW(),
+    "sentAt" TIMESTAMP WITH TIME ZONE
+);
+
+-- The relay only ever looks for due PENDING rows
+CREATE INDEX IF NOT EXISTS idx_email_outbox_due ON "email_outbox" ("nextAttemptAt") WHERE status = 'PENDING';
+
+COMMIT;
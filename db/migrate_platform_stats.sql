@@ -0,0 +1,39 @@
+-- Adds the platform statistics tables (see init.sql, section 6) to a database created before they existed,
+-- and fills platform_stats from the assessments already anchored. Anchoring updates platform_stats in the
+-- same transaction, so this must run before the new version is deployed.
+-- Safe to run again: the counts are recomputed from dma_assessment. Past verifications were never counted,
+-- so verification_stats starts empty.
+
+BEGIN;
+
+CREATE TABLE IF NOT EXISTS "platform_stats" (
+    "type" VARCHAR(10) PRIMARY KEY CHECK ("type" IN ('DMA', 'CMA')),
+    "anchoredCount" BIGINT NOT NULL DEFAULT 0,
+    "anchoredScoreSum" NUMERIC(14, 2) NOT NULL DEFAULT 0,
+    "scoreHistogram" BIGINT[] NOT NULL DEFAULT '{0,0,0,0,0,0,0,0,0,0}', -- Anchored scores in 10-point buckets, last bucket open-ended
+    "updatedAt" TIMESTAMP WITH TIME ZONE
+);
+
+INSERT INTO "platform_stats" ("type") VALUES ('DMA'), ('CMA') ON CONFLICT ("type") DO NOTHING;
+
+-- Backfill from assessments anchored before the statistics existed
+UPDATE "platform_stats" ps
+SET "anchoredCount" = s.cnt, "anchoredScoreSum" = s.total, "scoreHistogram" = s.hist, "updatedAt" = NOW()
+FROM (
+    SELECT COUNT(*) AS cnt,
+           COALESCE(SUM("finalTsiScore"), 0) AS total,
+           ARRAY(SELECT COUNT(d."assessmentId")
+                 FROM generate_series(0, 9) b
+                 LEFT JOIN "dma_assessment" d
+                   ON d.status = 'ANCHORED' AND LEAST(GREATEST(FLOOR(d."finalTsiScore" / 10)::int, 0), 9) = b
+                 GROUP BY b ORDER BY b) AS hist
+    FROM "dma_assessment" WHERE status = 'ANCHORED'
+) s
+WHERE ps."type" = 'DMA';
+
+CREATE TABLE IF NOT EXISTS "verification_stats" (
+    "month" DATE PRIMARY KEY, -- First day of the month
+    "verifications" BIGINT NOT NULL DEFAULT 0
+);
+
+COMMIT;
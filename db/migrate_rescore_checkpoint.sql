@@ -0,0 +1,13 @@
+-- Adds the re-scoring checkpoint table (see init.sql, section 7) to a database created before it existed.
+-- rescore_assessments and get_rescore_status read and write it. Safe to run again.
+
+CREATE TABLE IF NOT EXISTS "rescore_checkpoint" (
+    "template" VARCHAR(64) PRIMARY KEY, -- e.g. 'dma-v1'
+    "lastAssessmentId" BIGINT NOT NULL DEFAULT 0, -- Every assessment up to this ID has been re-scored
+    "processed" BIGINT NOT NULL DEFAULT 0,
+    "updated" BIGINT NOT NULL DEFAULT 0,
+    "failed" BIGINT NOT NULL DEFAULT 0,
+    "startedAt" TIMESTAMP WITH TIME ZONE,
+    "updatedAt" TIMESTAMP WITH TIME ZONE,
+    "completedAt" TIMESTAMP WITH TIME ZONE -- NULL while a run is unfinished
+);
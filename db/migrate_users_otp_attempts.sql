@@ -0,0 +1,4 @@
+-- Adds the count of wrong OTP codes to users (see init.sql, section 1) on a database created before it existed.
+-- Used by the database OTP store (framework.otp.store=db). Safe to run again.
+
+ALTER TABLE "users" ADD COLUMN IF NOT EXISTS "otpAttempts" INTEGER NOT NULL DEFAULT 0; -- Wrong codes entered for the current OTP (framework.otp.store=db)
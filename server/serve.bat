@@ -30,10 +30,34 @@ for /f "tokens=1* delims==" %%A in (.env) do (
 set JAVA_HOME=%JAVA_HOME%
 set TSI_RATINGS_ENV=%TSI_RATINGS_ENV%
 set TSI_RATINGS_HOME=%TSI_RATINGS_HOME%
+set TSI_RATINGS_MAX_BODY_BYTES=%TSI_RATINGS_MAX_BODY_BYTES%
+set TSI_RATINGS_JWT_CACHE_SIZE=%TSI_RATINGS_JWT_CACHE_SIZE%
+set TSI_RATINGS_API_KEY_CACHE_TTL_MS=%TSI_RATINGS_API_KEY_CACHE_TTL_MS%
+set TSI_RATINGS_MAIL_WORKERS=%TSI_RATINGS_MAIL_WORKERS%
+set TSI_RATINGS_MAIL_QUEUE_SIZE=%TSI_RATINGS_MAIL_QUEUE_SIZE%
+set TSI_RATINGS_MAIL_MAX_ATTEMPTS=%TSI_RATINGS_MAIL_MAX_ATTEMPTS%
+set TSI_RATINGS_MAIL_OUTBOX_MAX_ATTEMPTS=%TSI_RATINGS_MAIL_OUTBOX_MAX_ATTEMPTS%
+set TSI_RATINGS_OTP_STORE=%TSI_RATINGS_OTP_STORE%
+set TSI_RATINGS_RATE_LIMIT_ENABLED=%TSI_RATINGS_RATE_LIMIT_ENABLED%
+set TSI_RATINGS_TRUST_FORWARDED_FOR=%TSI_RATINGS_TRUST_FORWARDED_FOR%
+set TSI_RATINGS_SHED_MAX_IN_FLIGHT=%TSI_RATINGS_SHED_MAX_IN_FLIGHT%
+set TSI_RATINGS_SHED_MAX_POOL_WAIT_MS=%TSI_RATINGS_SHED_MAX_POOL_WAIT_MS%
+set ZOHO_API_BATCH_HOST=%ZOHO_API_BATCH_HOST%
 set POSTGRES_HOST=%POSTGRES_HOST%
 set POSTGRES_DB=%POSTGRES_DB%
 set POSTGRES_USER=%POSTGRES_USER%
 set POSTGRES_PASSWD=%POSTGRES_PASSWD%
+set POSTGRES_POOL_MAX_SIZE=%POSTGRES_POOL_MAX_SIZE%
+set POSTGRES_POOL_MIN_IDLE=%POSTGRES_POOL_MIN_IDLE%
+set POSTGRES_POOL_CONNECTION_TIMEOUT_MS=%POSTGRES_POOL_CONNECTION_TIMEOUT_MS%
+set POSTGRES_POOL_IDLE_TIMEOUT_MS=%POSTGRES_POOL_IDLE_TIMEOUT_MS%
+set POSTGRES_POOL_MAX_LIFETIME_MS=%POSTGRES_POOL_MAX_LIFETIME_MS%
+set POSTGRES_POOL_LEAK_DETECTION_MS=%POSTGRES_POOL_LEAK_DETECTION_MS%
+set POSTGRES_REPLICA_HOST=%POSTGRES_REPLICA_HOST%
+set POSTGRES_REPLICA_POOL_MAX_SIZE=%POSTGRES_REPLICA_POOL_MAX_SIZE%
+set POSTGRES_REPLICA_POOL_MIN_IDLE=%POSTGRES_REPLICA_POOL_MIN_IDLE%
+set POSTGRES_REPLICA_MAX_LAG_MS=%POSTGRES_REPLICA_MAX_LAG_MS%
+set POSTGRES_REPLICA_LAG_CHECK_MS=%POSTGRES_REPLICA_LAG_CHECK_MS%
 set JETTY_HOME=%JETTY_HOME%
 set JETTY_BASE=%JETTY_BASE%
 copy %TSI_RATINGS_HOME%\target\tsi_ratings.war %JETTY_BASE%\webapps\ROOT.war >NUL
@@ -12,10 +12,34 @@ fi
 export JAVA_HOME=$JAVA_HOME
 export TSI_RATINGS_ENV=$TSI_RATINGS_ENV
 export TSI_RATINGS_HOME=$TSI_RATINGS_HOME
+export TSI_RATINGS_MAX_BODY_BYTES=$TSI_RATINGS_MAX_BODY_BYTES
+export TSI_RATINGS_JWT_CACHE_SIZE=$TSI_RATINGS_JWT_CACHE_SIZE
+export TSI_RATINGS_API_KEY_CACHE_TTL_MS=$TSI_RATINGS_API_KEY_CACHE_TTL_MS
+export TSI_RATINGS_MAIL_WORKERS=$TSI_RATINGS_MAIL_WORKERS
+export TSI_RATINGS_MAIL_QUEUE_SIZE=$TSI_RATINGS_MAIL_QUEUE_SIZE
+export TSI_RATINGS_MAIL_MAX_ATTEMPTS=$TSI_RATINGS_MAIL_MAX_ATTEMPTS
+export TSI_RATINGS_MAIL_OUTBOX_MAX_ATTEMPTS=$TSI_RATINGS_MAIL_OUTBOX_MAX_ATTEMPTS
+export TSI_RATINGS_OTP_STORE=$TSI_RATINGS_OTP_STORE
+export TSI_RATINGS_RATE_LIMIT_ENABLED=$TSI_RATINGS_RATE_LIMIT_ENABLED
+export TSI_RATINGS_TRUST_FORWARDED_FOR=$TSI_RATINGS_TRUST_FORWARDED_FOR
+export TSI_RATINGS_SHED_MAX_IN_FLIGHT=$TSI_RATINGS_SHED_MAX_IN_FLIGHT
+export TSI_RATINGS_SHED_MAX_POOL_WAIT_MS=$TSI_RATINGS_SHED_MAX_POOL_WAIT_MS
+export ZOHO_API_BATCH_HOST=$ZOHO_API_BATCH_HOST
 export POSTGRES_HOST=$POSTGRES_HOST
 export POSTGRES_DB=$POSTGRES_DB
 export POSTGRES_USER=$POSTGRES_USER
 export POSTGRES_PASSWD=$POSTGRES_PASSWD
+export POSTGRES_POOL_MAX_SIZE=$POSTGRES_POOL_MAX_SIZE
+export POSTGRES_POOL_MIN_IDLE=$POSTGRES_POOL_MIN_IDLE
+export POSTGRES_POOL_CONNECTION_TIMEOUT_MS=$POSTGRES_POOL_CONNECTION_TIMEOUT_MS
+export POSTGRES_POOL_IDLE_TIMEOUT_MS=$POSTGRES_POOL_IDLE_TIMEOUT_MS
+export POSTGRES_POOL_MAX_LIFETIME_MS=$POSTGRES_POOL_MAX_LIFETIME_MS
+export POSTGRES_POOL_LEAK_DETECTION_MS=$POSTGRES_POOL_LEAK_DETECTION_MS
+export POSTGRES_REPLICA_HOST=$POSTGRES_REPLICA_HOST
+export POSTGRES_REPLICA_POOL_MAX_SIZE=$POSTGRES_REPLICA_POOL_MAX_SIZE
+export POSTGRES_REPLICA_POOL_MIN_IDLE=$POSTGRES_REPLICA_POOL_MIN_IDLE
+export POSTGRES_REPLICA_MAX_LAG_MS=$POSTGRES_REPLICA_MAX_LAG_MS
+export POSTGRES_REPLICA_LAG_CHECK_MS=$POSTGRES_REPLICA_LAG_CHECK_MS
 export JETTY_HOME=$JETTY_HOME
 export JETTY_BASE=$JETTY_BASE
 java -jar $JETTY_HOME/start.jar
\ No newline at end of file
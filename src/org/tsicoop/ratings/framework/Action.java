@@ -13,7 +13,25 @@ public interface Action {
     String DELIMITER = ".";
     JSONObject validator = null;
 
-    void post(HttpServletRequest req, HttpServletResponse res);
+    /**
+     * Fallback for a POST whose _func has no handler registered through register().
+     */
+    default void post(HttpServletRequest req, HttpServletResponse res) {
+        String func = null;
+        try {
+            JSONObject input = InputProcessor.getInput(req);
+            func = input != null ? (String) input.get("_func") : null;
+        } catch (Exception ignore) {
+        }
+        OutputProcessor.errorResponse(res, HttpServletResponse.SC_BAD_REQUEST, "Bad Request", "Unknown function: '" + func + "'.", req.getRequestURI());
+    }
 
     boolean validate(String method, HttpServletRequest req, HttpServletResponse res);
+
+    /**
+     * Registers the handler for each _func this Action serves. Called once when the
+     * filter builds its routing table.
+     */
+    default void register(FunctionRegistry registry) {
+    }
 }
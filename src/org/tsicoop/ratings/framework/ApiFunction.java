@@ -0,0 +1,163 @@
+package org.tsicoop.ratings.framework;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.json.simple.JSONObject;
+
+/**
+ * A single _func served by an Action, with its handler, the schema its input is
+ * validated against, the authentication it requires, whether it may read from the
+ * replica, how its responses may be cached, its rate limit and its latency histogram.
+ */
+public class ApiFunction {
+
+    public enum Auth {
+        PUBLIC, // No token required on admin paths (login, registration, public verification)
+        TOKEN   // Bearer JWT required on admin paths
+    }
+
+    @FunctionalInterface
+    public interface Handler {
+        void handle(HttpServletRequest req, HttpServletResponse res, JSONObject input) throws Exception;
+    }
+
+    /**
+     * Names the version of the response a request would get, or returns null when that
+     * response is not cacheable. Runs before the handler on every call, so it must be cheap.
+     */
+    @FunctionalInterface
+    public interface ETagResolver {
+        String resolve(HttpServletRequest req, JSONObject input) throws Exception;
+    }
+
+    private final String name;
+    private final Handler handler;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private String schema;
+    private Auth auth = Auth.TOKEN;
+    private boolean readOnly = false;
+    private ETagResolver etagResolver = null;
+    private String cacheControl = null;
+    private RateLimiter rateLimiter = null;
+    private boolean sheddable = true;
+
+    public ApiFunction(String name, Handler handler) {
+        this.name = name;
+        this.handler = handler;
+        this.schema = name;
+    }
+
+    /**
+     * Validates input against /WEB-INF/validator/&lt;schema&gt;.jschema instead of the _func name.
+     */
+    public ApiFunction schema(String schema) {
+        this.schema = schema;
+        return this;
+    }
+
+    public ApiFunction auth(Auth auth) {
+        this.auth = auth;
+        return this;
+    }
+
+    /**
+     * Declares that the handler only reads, so its queries may be served by the read replica.
+     */
+    public ApiFunction readOnly() {
+        this.readOnly = true;
+        return this;
+    }
+
+    /**
+     * Makes responses cacheable. When the resolver gives an ETag, the response carries it
+     * with the given Cache-Control, and a request whose If-None-Match already names it is
+     * answered 304 Not Modified without running the handler.
+     */
+    public ApiFunction cacheable(ETagResolver etagResolver, String cacheControl) {
+        this.etagResolver = etagResolver;
+        this.cacheControl = cacheControl;
+        return this;
+    }
+
+    /**
+     * Limits each caller (client IP and API key) to perMinute requests a minute, in bursts
+     * of up to burst; further requests get 429 with Retry-After.
+     */
+    public ApiFunction rateLimit(int perMinute, int burst) {
+        return rateLimit(perMinute, burst, 0);
+    }
+
+    /**
+     * As rateLimit(perMinute, burst), and also limits all callers together to
+     * globalPerMinute requests over any one minute.
+     */
+    public ApiFunction rateLimit(int perMinute, int burst, int globalPerMinute) {
+        this.rateLimiter = new RateLimiter(perMinute, burst, globalPerMinute);
+        return this;
+    }
+
+    /**
+     * Keeps serving the function while the service sheds load (e.g. metrics for operators).
+     * Load is shed before the body names the _func, so a path is only exempt when every
+     * _func its service registers is marked this way.
+     */
+    public ApiFunction alwaysServe() {
+        this.sheddable = false;
+        return this;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getSchema() {
+        return schema;
+    }
+
+    public Auth getAuth() {
+        return auth;
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    public boolean isCacheable() {
+        return etagResolver != null;
+    }
+
+    public RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    public boolean isSheddable() {
+        return sheddable;
+    }
+
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    /**
+     * Runs the handler, unless the client's cached copy is still current, and records
+     * its latency, including when it fails.
+     */
+    public void invoke(HttpServletRequest req, HttpServletResponse res, JSONObject input) throws Exception {
+        long start = System.nanoTime();
+        boolean previousScope = readOnly && PoolDB.beginReadOnlyScope();
+        try {
+            if (etagResolver != null) {
+                String etag = etagResolver.resolve(req, input);
+                if (etag != null && OutputProcessor.notModified(req, res, etag, cacheControl)) {
+                    return;
+                }
+            }
+            handler.handle(req, res, input);
+        } finally {
+            if (readOnly) {
+                PoolDB.endReadOnlyScope(previousScope);
+            }
+            latency.record(System.nanoTime() - start);
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package org.tsicoop.ratings.framework;
+
+import org.json.simple.JSONObject;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * In-memory view of the api_keys table for client endpoint authentication.
+ * Active keys are cached with the SHA-256 hash of their secret, which is compared in
+ * constant time; unknown and inactive keys are cached for a shorter time in a separate,
+ * smaller cache, so requests with made-up keys cannot push real keys out. Changes to
+ * api_keys are pushed by the database on the api_keys_changed channel and evict the
+ * affected key, so revocation does not wait for the TTL.
+ *
+ * A load that was already reading the database when its key was evicted may have read
+ * the row as it was before the change. Each eviction therefore bumps a generation
+ * counter for the key's stripe, and a load whose generation has moved on by the time it
+ * has cached its result removes that result again.
+ */
+public class ApiKeyCache {
+
+    public static final String CHANNEL = "api_keys_changed";
+
+    private static final int MAX_ENTRIES = 10000;
+    private static final int MAX_REJECTED_ENTRIES = 1000;
+    private static final int GENERATION_STRIPES = 1024;
+    private static final long DEFAULT_TTL_MS = 300000; // 5 minutes
+    private static final long NEGATIVE_TTL_MS = 30000;
+    private static final int POLL_TIMEOUT_MS = 10000;
+    private static final long RECONNECT_DELAY_MS = 5000;
+
+    // Cached for unknown or inactive keys; never matches a secret hash
+    private static final byte[] REJECTED = new byte[0];
+
+    private static final ExpiringCache<UUID, byte[]> keys = new ExpiringCache<>(MAX_ENTRIES);
+    private static final ExpiringCache<UUID, byte[]> rejected = new ExpiringCache<>(MAX_REJECTED_ENTRIES);
+    private static final AtomicLongArray generations = new AtomicLongArray(GENERATION_STRIPES);
+
+    private static volatile long ttlMs = DEFAULT_TTL_MS;
+    private static volatile Thread listener = null;
+    private static volatile boolean listening = false;
+    private static volatile boolean connected = false;
+
+    protected static void configure() {
+        ttlMs = SystemConfig.getLongProperty("framework.apikey.cache_ttl_ms", DEFAULT_TTL_MS);
+    }
+
+    public static boolean isValid(String apiKey, String apiSecret) throws SQLException {
+        UUID id;
+        try {
+            id = UUID.fromString(apiKey);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        byte[] expected = keys.get(id);
+        if (expected == null && rejected.get(id) != null) {
+            return false;
+        }
+        if (expected == null) {
+            int stripe = stripeOf(id);
+            long generation = generations.get(stripe);
+            expected = load(id);
+            ExpiringCache<UUID, byte[]> cache = expected == REJECTED ? rejected : keys;
+            long ttl = expected == REJECTED ? Math.min(NEGATIVE_TTL_MS, ttlMs) : ttlMs;
+            cache.put(id, expected, System.currentTimeMillis() + ttl);
+            if (generations.get(stripe) != generation) {
+                // Evicted while loading; what was read may predate the change
+                cache.remove(id);
+            }
+        }
+        return expected != REJECTED && MessageDigest.isEqual(expected, hash(apiSecret));
+    }
+
+    private static int stripeOf(UUID id) {
+        int h = id.hashCode();
+        return (h ^ (h >>> 16)) & (GENERATION_STRIPES - 1);
+    }
+
+    private static byte[] load(UUID id) throws SQLException {
+        byte[] secretHash = REJECTED;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        PoolDB pool = new PoolDB();
+        Connection conn = pool.getConnection();
+        try {
+            pstmt = conn.prepareStatement("SELECT status, secret_hash FROM api_keys WHERE id = ?");
+            pstmt.setObject(1, id);
+            rs = pstmt.executeQuery();
+            if (rs.next() && "ACTIVE".equalsIgnoreCase(rs.getString("status"))) {
+                String stored = rs.getString("secret_hash");
+                if (stored != null) {
+                    secretHash = fromHex(stored);
+                }
+            }
+        } finally {
+            pool.cleanup(rs, pstmt, conn);
+        }
+        return secretHash;
+    }
+
+    /**
+     * SHA-256 of the secret, the form stored in api_keys.secret_hash (as lowercase hex).
+     */
+    public static byte[] hash(String apiSecret) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(apiSecret.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    private static byte[] fromHex(String hex) {
+        if (hex.length() % 2 != 0) {
+            return REJECTED;
+        }
+        byte[] out = new byte[hex.length() / 2];
+        for (int i = 0; i < out.length; i++) {
+            int hi = Character.digit(hex.charAt(i * 2), 16);
+            int lo = Character.digit(hex.charAt(i * 2 + 1), 16);
+            if (hi < 0 || lo < 0) {
+                return REJECTED;
+            }
+            out[i] = (byte) ((hi << 4) | lo);
+        }
+        return out;
+    }
+
+    public static synchronized void startListener() {
+        if (listener != null) {
+            return;
+        }
+        listening = true;
+        listener = new Thread(ApiKeyCache::listen, "tsi-apikey-listener");
+        listener.setDaemon(true);
+        listener.start();
+    }
+
+    public static synchronized void stopListener() {
+        listening = false;
+        if (listener != null) {
+            listener.interrupt();
+            listener = null;
+        }
+    }
+
+    // Holds its own connection outside the pool for as long as the service runs
+    private static void listen() {
+        while (listening) {
+            BatchDB db = null;
+            try {
+                db = new BatchDB(SystemConfig.getAppConfig());
+                Connection conn = db.getConnection();
+                try (Statement stmt = conn.createStatement()) {
+                    stmt.execute("LISTEN " + CHANNEL);
+                }
+                // Changes made while we were not listening were missed
+                evictAll();
+                connected = true;
+                System.out.println("Listening for API key changes on " + CHANNEL);
+                PGConnection pg = conn.unwrap(PGConnection.class);
+                while (listening) {
+                    PGNotification[] notifications = pg.getNotifications(POLL_TIMEOUT_MS);
+                    if (notifications == null) {
+                        continue;
+                    }
+                    for (PGNotification n : notifications) {
+                        evict(n.getParameter());
+                    }
+                }
+            } catch (SQLException e) {
+                if (listening) {
+                    System.err.println("API key listener disconnected: " + e.getMessage());
+                }
+            } finally {
+                connected = false;
+                if (db != null) {
+                    db.close(db.getConnection());
+                }
+            }
+            try {
+                Thread.sleep(RECONNECT_DELAY_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    // The generation is bumped before the entry is removed, so a load that cached after the removal sees it
+    private static void evict(String payload) {
+        UUID id;
+        try {
+            id = UUID.fromString(payload);
+        } catch (RuntimeException e) {
+            evictAll();
+            return;
+        }
+        generations.incrementAndGet(stripeOf(id));
+        keys.remove(id);
+        rejected.remove(id);
+    }
+
+    private static void evictAll() {
+        for (int i = 0; i < GENERATION_STRIPES; i++) {
+            generations.incrementAndGet(i);
+        }
+        keys.clear();
+        rejected.clear();
+    }
+
+    public static JSONObject getStats() {
+        JSONObject stats = keys.getStats();
+        stats.put("rejected", rejected.getStats());
+        stats.put("listening", connected);
+        return stats;
+    }
+}
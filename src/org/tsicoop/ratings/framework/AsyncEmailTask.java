@@ -4,12 +4,9 @@ import java.io.OutputStreamWriter;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLEncoder;
-import java.util.Properties;
-import java.util.Timer;
-import java.util.TimerTask;
 
 
-public class AsyncEmailTask extends TimerTask {
+public class AsyncEmailTask implements Runnable {
 
     String apiUrl = null;
     String apiUser = null;
@@ -37,17 +34,17 @@ public class AsyncEmailTask extends TimerTask {
         this.subject = subject;
         this.msgbody = msgbody;
 
-        Timer timer = new Timer();
-        timer.schedule(this, 1000);
+        // Queued on the shared dispatcher, which retries failures with backoff
+        MailDispatcher.submit(this::sendMail, String.valueOf(to));
     }
 
 
     private void sendMail() throws Exception {
-        Properties props = new Properties();
-        msgbody = URLEncoder.encode(msgbody, "UTF-8");
+        // Encoded into locals so that a retry sends the same message
+        String msgbody = URLEncoder.encode(this.msgbody, "UTF-8");
         msgbody = msgbody.replaceAll(" ", "%20");
-        senderPersonal = (senderPersonal != null) ? senderPersonal.replaceAll(" ", "%20") : from.substring(0, from.indexOf('@'));
-        subject = URLEncoder.encode(subject, "UTF-8");
+        String senderPersonal = (this.senderPersonal != null) ? this.senderPersonal.replaceAll(" ", "%20") : from.substring(0, from.indexOf('@'));
+        String subject = URLEncoder.encode(this.subject, "UTF-8");
         String message = apiUrl + "?api_user=" + apiUser + "&api_key=" + apipassword + "" +
                 "&to=" + to + "&subject=" + subject + "&html=" + msgbody + "&from=" + from + "&fromname=" + senderPersonal;
 
@@ -58,45 +55,18 @@ public class AsyncEmailTask extends TimerTask {
         connection.setRequestMethod("POST");
         OutputStreamWriter writer = new OutputStreamWriter(connection.getOutputStream());
         writer.close();
-        System.out.println(connection.getResponseCode());
-        if (connection.getResponseCode() == HttpURLConnection.HTTP_OK) {
-            System.out.println(connection.getResponseCode());
-        } else {
-            // Server returned HTTP error code.
-            //log.error("ResponseCode" + connection.getResponseCode());
+        if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+            // Server returned HTTP error code; the dispatcher retries
+            throw new Exception("ResponseCode " + connection.getResponseCode());
         }
     }
 
     @Override
     public void run() {
-        // TODO Auto-generated method stub
         try {
             this.sendMail();
-        } catch (Exception e1) {
-            //log.error("", e1);
-            try {
-                Thread.sleep(20 * 1000);
-            } catch (InterruptedException ie1) {
-            }
-            try {
-                this.sendMail();
-            } catch (Exception e2) {
-                //log.error("", e2);
-                //log.info("Attempt #2.. Sending to " + to);
-                try {
-                    Thread.sleep(20 * 1000);
-                } catch (InterruptedException ie2) {
-                    //log.error("", ie2);
-                }
-                try {
-                    //log.info("Attempt #3.. Sending to " + to);
-                    this.sendMail();
-                } catch (Exception e3) {
-                    // giving up
-                    //log.error("", e3);
-                    //log.info("Giving up.. Sending to " + to);
-                }
-            }
+        } catch (Exception e) {
+            System.err.println("Error sending mail to " + to + ": " + e.getMessage());
         }
     }
 }
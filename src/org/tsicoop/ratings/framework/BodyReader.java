@@ -0,0 +1,90 @@
+package org.tsicoop.ratings.framework;
+
+import jakarta.servlet.http.HttpServletRequest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads request bodies as raw bytes into pooled buffers and hands them straight to the
+ * JSON parser, without character decoding or an intermediate String.
+ * Bodies larger than the configured maximum are rejected before they are buffered:
+ * immediately when Content-Length declares it, otherwise as soon as the limit is crossed.
+ */
+public class BodyReader {
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final int POOL_SIZE = 64;
+    private static final long DEFAULT_MAX_BODY_BYTES = 1024 * 1024;
+
+    private static final BlockingQueue<byte[]> pool = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    private static volatile long maxBodyBytes = DEFAULT_MAX_BODY_BYTES;
+
+    public static class PayloadTooLargeException extends IOException {
+        public PayloadTooLargeException(long maxBodyBytes) {
+            super("Request body exceeds the maximum of " + maxBodyBytes + " bytes.");
+        }
+    }
+
+    protected static void configure() {
+        long max = SystemConfig.getLongProperty("framework.http.max_body_bytes", DEFAULT_MAX_BODY_BYTES);
+        maxBodyBytes = Math.max(0L, Math.min(max, Integer.MAX_VALUE - 8));
+    }
+
+    public static RequestBody read(HttpServletRequest req) throws IOException {
+        long declared = req.getContentLengthLong();
+        if (declared > maxBodyBytes) {
+            throw new PayloadTooLargeException(maxBodyBytes);
+        }
+
+        // Declared bodies that fit a pooled buffer (and all chunked bodies) start in one;
+        // larger declared bodies get an exact-size array so they are read without copying
+        byte[] pooled = null;
+        byte[] buf;
+        if (declared > BUFFER_SIZE) {
+            buf = new byte[(int) declared];
+        } else {
+            buf = pooled = borrow();
+        }
+        long limit = declared >= 0 ? declared : Long.MAX_VALUE;
+        int len = 0;
+        try {
+            InputStream in = req.getInputStream();
+            while (len < limit) {
+                if (len == buf.length) {
+                    // Only chunked bodies get here: grow up to one byte past the limit
+                    if (len > maxBodyBytes - 1) {
+                        throw new PayloadTooLargeException(maxBodyBytes);
+                    }
+                    buf = Arrays.copyOf(buf, (int) Math.min((long) buf.length * 2, maxBodyBytes + 1));
+                }
+                int n = in.read(buf, len, (int) Math.min(buf.length, limit) - len);
+                if (n < 0) {
+                    break;
+                }
+                len += n;
+            }
+            if (len > maxBodyBytes) {
+                throw new PayloadTooLargeException(maxBodyBytes);
+            }
+            return RequestBody.parse(buf, 0, len);
+        } finally {
+            release(pooled);
+        }
+    }
+
+    private static byte[] borrow() {
+        byte[] buf = pool.poll();
+        return buf != null ? buf : new byte[BUFFER_SIZE];
+    }
+
+    private static void release(byte[] buf) {
+        if (buf != null) {
+            pool.offer(buf);
+        }
+    }
+}
@@ -4,7 +4,6 @@ import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 
 import java.sql.*;
-import java.text.SimpleDateFormat;
 
 
 @SuppressWarnings("unchecked")
@@ -73,8 +72,9 @@ public abstract class DB {
         JSONArray jsonResultArr = new JSONArray();
         try {
             if (rs != null) {
+                RowMapper mapper = RowMapper.compile(rs.getMetaData());
                 while (rs.next()) {
-                    JSONObject json = getJSON(rs);
+                    JSONObject json = mapper.toJSON(rs);
                     jsonResultArr.add(json);
                 }
             }
@@ -87,7 +87,7 @@ public abstract class DB {
         JSONObject jsonResult = new JSONObject();
         try {
             if (rs != null && rs.next()) {
-                jsonResult = getJSON(rs);
+                jsonResult = RowMapper.compile(rs.getMetaData()).toJSON(rs);
             }
         } catch (SQLException e) {
             e.printStackTrace();
@@ -99,14 +99,14 @@ public abstract class DB {
         JSONObject jsonResult = new JSONObject();
         try {
             if (rs != null) {
-                ResultSetMetaData rsmd = rs.getMetaData();
+                RowMapper mapper = RowMapper.compile(rs.getMetaData());
                 JSONArray header = new JSONArray();
-                for (int i = 1, colCount = rsmd.getColumnCount(); i <= colCount; i++) {
-                    header.add(rsmd.getColumnLabel(i));
+                for (String label : mapper.getLabels()) {
+                    header.add(label);
                 }
                 JSONArray jsonResultArr = new JSONArray();
                 while (rs.next()) {
-                    JSONObject json = getJSON(rs);
+                    JSONObject json = mapper.toJSON(rs);
                     jsonResultArr.add(json);
                 }
                 jsonResult.put("header", header);
@@ -226,73 +226,4 @@ public abstract class DB {
 //		}
 //		return true;
 //	}
-
-    private static JSONObject getJSON(ResultSet rs) throws SQLException {
-        ResultSetMetaData rsmd = rs.getMetaData();
-        JSONObject json = new JSONObject();
-        SimpleDateFormat sdf = new SimpleDateFormat("dd-MM-yyyy");
-        SimpleDateFormat sdfTimeStamp = new SimpleDateFormat("dd-MM-yyyy hh:mm:ss a");
-        for (int index = 1, colCount = rsmd.getColumnCount(); index <= colCount; index++) {
-            Object value = null;
-            switch (rsmd.getColumnType(index)) {
-                case Types.VARCHAR:
-                case Types.CHAR: {
-                    value = rs.getString(index);
-                    if (value == null) value = "";
-                }
-                break;
-
-                case Types.TIMESTAMP: {
-                    Timestamp timeStamp = rs.getTimestamp(index);
-                    String sTimeStamp = "";
-                    if (timeStamp != null) {
-                        sTimeStamp = sdfTimeStamp.format(new Date(timeStamp.getTime()));
-                    }
-                    value = sTimeStamp;
-                }
-                break;
-
-                case Types.DATE: {
-                    Date date = rs.getDate(index);
-                    if (date != null) {
-                        value = sdf.format(date);
-                    }
-                }
-                break;
-
-                case Types.BIGINT:
-                case Types.NUMERIC: {
-                    value = rs.getLong(index);
-                }
-                break;
-
-                case Types.INTEGER: {
-                    value = rs.getInt(index);
-                }
-                break;
-
-                case Types.FLOAT: {
-                    value = rs.getFloat(index);
-                }
-                break;
-
-                case Types.DECIMAL: {
-                    value = rs.getDouble(index);
-                }
-                break;
-
-                case Types.DOUBLE: {
-                    value = rs.getDouble(index);
-                }
-                break;
-
-                default: {
-                    value = rs.getString(index);
-                    if (value == null) value = "";
-                }
-            }
-            json.put(rsmd.getColumnLabel(index), value);
-        }
-        return json;
-    }
 }
\ No newline at end of file
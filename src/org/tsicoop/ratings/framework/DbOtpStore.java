@@ -0,0 +1,122 @@
+package org.tsicoop.ratings.framework;
+
+import org.json.simple.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The OtpStore kept on the users row ("otpCode", "otpExpiry", "otpAttempts"), shared by
+ * every instance. Each call uses the caller's PoolDB connection, so an OTP issued inside
+ * a transaction is only kept if that transaction commits, and login needs no second
+ * connection.
+ */
+public class DbOtpStore implements OtpStore {
+
+    // Only replaces an OTP issued at least COOLDOWN_MS ago (or expired or used up)
+    private static final String SQL_ISSUE = "UPDATE \"users\" SET \"otpCode\" = ?, \"otpExpiry\" = NOW() + make_interval(secs => ?), \"otpAttempts\" = 0 " +
+            "WHERE email = ? AND (\"otpExpiry\" IS NULL OR \"otpExpiry\" <= NOW() + make_interval(secs => ?)) RETURNING \"otpExpiry\"";
+
+    private static final String SQL_REVOKE = "UPDATE \"users\" SET \"otpCode\" = NULL, \"otpExpiry\" = NULL, \"otpAttempts\" = 0 WHERE email = ? AND \"otpCode\" = ?";
+
+    private static final String SQL_LOCK = "SELECT \"otpCode\", \"otpAttempts\", \"otpExpiry\" <= NOW() AS expired FROM \"users\" WHERE email = ? FOR UPDATE";
+
+    private static final String SQL_CLEAR = "UPDATE \"users\" SET \"otpCode\" = NULL, \"otpExpiry\" = NULL, \"otpAttempts\" = 0 WHERE email = ?";
+
+    private static final String SQL_COUNT_ATTEMPT = "UPDATE \"users\" SET \"otpAttempts\" = \"otpAttempts\" + 1 WHERE email = ?";
+
+    private static final DbOtpStore instance = new DbOtpStore();
+
+    private final AtomicLong issued = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+    private final AtomicLong valid = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    public static DbOtpStore getInstance() {
+        return instance;
+    }
+
+    private DbOtpStore() {
+    }
+
+    @Override
+    public Timestamp issue(PoolDB pool, String email, String otp) throws SQLException {
+        try (PreparedStatement pstmt = pool.getConnection().prepareStatement(SQL_ISSUE)) {
+            pstmt.setString(1, otp);
+            pstmt.setDouble(2, TTL_MS / 1000.0);
+            pstmt.setString(3, email);
+            pstmt.setDouble(4, (TTL_MS - COOLDOWN_MS) / 1000.0);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (rs.next()) {
+                    issued.incrementAndGet();
+                    return rs.getTimestamp("otpExpiry");
+                }
+            }
+        }
+        throttled.incrementAndGet(); // Or no such user
+        return null;
+    }
+
+    @Override
+    public void revoke(PoolDB pool, String email, String otp) throws SQLException {
+        try (PreparedStatement pstmt = pool.getConnection().prepareStatement(SQL_REVOKE)) {
+            pstmt.setString(1, email);
+            pstmt.setString(2, otp);
+            pstmt.executeUpdate();
+        }
+    }
+
+    @Override
+    public Result verify(PoolDB pool, String email, String otp) throws SQLException {
+        Result result = pool.transaction(conn -> {
+            String storedOtp;
+            int attempts;
+            boolean expired;
+            try (PreparedStatement pstmt = conn.prepareStatement(SQL_LOCK)) {
+                pstmt.setString(1, email);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    if (!rs.next()) {
+                        return Result.NOT_REQUESTED;
+                    }
+                    storedOtp = rs.getString("otpCode");
+                    attempts = rs.getInt("otpAttempts");
+                    expired = rs.getBoolean("expired");
+                }
+            }
+            if (storedOtp == null) {
+                return Result.NOT_REQUESTED;
+            }
+            if (attempts >= MAX_ATTEMPTS) {
+                return Result.LOCKED; // Kept until replaced, so the cooldown still applies
+            }
+            boolean matches = MessageDigest.isEqual(storedOtp.getBytes(StandardCharsets.UTF_8), otp.getBytes(StandardCharsets.UTF_8));
+            try (PreparedStatement pstmt = conn.prepareStatement(matches ? SQL_CLEAR : SQL_COUNT_ATTEMPT)) {
+                pstmt.setString(1, email);
+                pstmt.executeUpdate();
+            }
+            if (!matches) {
+                return Result.INVALID;
+            }
+            return expired ? Result.EXPIRED : Result.VALID;
+        });
+        (result == Result.VALID ? valid : rejected).incrementAndGet();
+        return result;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        stats.put("store", "db");
+        stats.put("issued", issued.get());
+        stats.put("throttled", throttled.get());
+        stats.put("valid", valid.get());
+        stats.put("rejected", rejected.get());
+        return stats;
+    }
+}
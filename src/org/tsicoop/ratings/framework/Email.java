@@ -4,12 +4,17 @@ import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 
 import java.security.SecureRandom;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Timestamp;
 
 public class Email {
 
     public static String ZOHO_API_HOST = System.getenv("ZOHO_API_HOST");
     public static String ZOHO_AUTH_KEY = System.getenv("ZOHO_AUTH_KEY");
 
+    private static final String OTP_SUBJECT = "Your Login OTP";
+
     public static void sendEmail(String apihost, String authorization, String email, String name, String subject, String content) throws Exception {
         HttpClient obj = new HttpClient();
         JSONObject test = new JSONObject();
@@ -35,26 +40,34 @@ public class Email {
     public static void sendOTP(String email, String otp){
         //System.out.println(ZOHO_API_HOST);
         //System.out.println(ZOHO_AUTH_KEY);
-        if(System.getenv("TSI_RATINGS_ENV") != null && System.getenv("TSI_RATINGS_ENV").equalsIgnoreCase("PRODUCTION")) {
-            String subject = "Your Login OTP";
-            StringBuffer buff = new StringBuffer();
-            buff.append("<p>The OTP for logging into your TSI Ratings account is "+otp+". It is valid for 5 minutes.</p>");
-            buff.append("<p>Please do not share this OTP with anyone.</p>");
-            buff.append("<p>Warm Regards<br/>"+" TSI Team</p>");
-            String content = buff.toString();
-            try {
-                new Email().sendEmail(ZOHO_API_HOST,
-                        ZOHO_AUTH_KEY,
-                        email,
-                        "",
-                        subject,
-                        content);
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
+        if(isProduction()) {
+            // Sent in the background so the request does not wait on the mail API
+            MailDispatcher.send(email, "", OTP_SUBJECT, otpContent(otp));
+        }
+    }
+
+    /**
+     * Adds the OTP email to the outbox in the caller's transaction, to be sent by the
+     * outbox relay once it commits and not after the OTP expires.
+     */
+    public static void queueOTP(Connection conn, String email, String otp, Timestamp expiresAt) throws SQLException {
+        if(isProduction()) {
+            EmailOutbox.enqueue(conn, email, "", OTP_SUBJECT, otpContent(otp), expiresAt);
         }
     }
 
+    private static String otpContent(String otp) {
+        StringBuffer buff = new StringBuffer();
+        buff.append("<p>The OTP for logging into your TSI Ratings account is "+otp+". It is valid for 5 minutes.</p>");
+        buff.append("<p>Please do not share this OTP with anyone.</p>");
+        buff.append("<p>Warm Regards<br/>"+" TSI Team</p>");
+        return buff.toString();
+    }
+
+    private static boolean isProduction() {
+        return System.getenv("TSI_RATINGS_ENV") != null && System.getenv("TSI_RATINGS_ENV").equalsIgnoreCase("PRODUCTION");
+    }
+
     public static String generate6DigitOTP() {
         String otpS = null;
         if(System.getenv("TSI_RATINGS_ENV") != null && System.getenv("TSI_RATINGS_ENV").equalsIgnoreCase("PRODUCTION")) {
@@ -0,0 +1,351 @@
+package org.tsicoop.ratings.framework;
+
+import org.json.simple.JSONObject;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Email that must survive a mail provider outage or a restart (e.g. login OTPs). The
+ * message is written to email_outbox in the caller's transaction, so it exists exactly
+ * when the change it belongs to is committed, and the request returns without waiting
+ * on the provider:
+ *
+ *     pool.transaction(conn -> {
+ *         ... update users ...
+ *         EmailOutbox.enqueue(conn, email, name, subject, html, expiresAt);
+ *     });
+ *     EmailOutbox.wake();
+ *
+ * One relay thread per instance drains the table. It claims due rows with
+ * FOR UPDATE SKIP LOCKED, so several instances never claim the same row, and leases them
+ * for LEASE_MINUTES: a row whose instance dies before reporting is claimed again once
+ * the lease runs out. While a row waits in the dispatcher's queue or is being sent, the
+ * relay renews its lease every RENEW_MS, so a slow provider cannot make the lease lapse
+ * and the message go out twice; a row still unreported after MAX_IN_FLIGHT_MS is let go.
+ *
+ * Claimed rows are sent through MailDispatcher one attempt at a time; the outbox owns
+ * retries. The outcome is written back by the relay, not on a mail thread. A failed row
+ * is retried later, up to framework.mail.outbox.max_attempts times. Rows past their
+ * expiresAt are not sent, and the body of a row is cleared once it is sent or given up
+ * on, so OTPs are not kept.
+ */
+public class EmailOutbox {
+
+    private static final int DEFAULT_MAX_ATTEMPTS = 5;
+    private static final int CLAIM_BATCH = 100;
+    private static final long POLL_MS = 5000;
+    private static final int LEASE_MINUTES = 5;
+    private static final long RENEW_MS = 60000;
+    private static final long MAX_IN_FLIGHT_MS = 3600000; // 1 hour
+    private static final int MAX_ERROR_LENGTH = 500;
+
+    private static final String SQL_ENQUEUE = "INSERT INTO \"email_outbox\" (\"recipient\", \"name\", \"subject\", \"htmlBody\", \"expiresAt\") VALUES (?, ?, ?, ?, ?)";
+
+    private static final String SQL_CLAIM = "UPDATE \"email_outbox\" SET \"attempts\" = \"attempts\" + 1, " +
+            "\"nextAttemptAt\" = NOW() + INTERVAL '" + LEASE_MINUTES + " minutes' " +
+            "WHERE \"id\" IN (SELECT \"id\" FROM \"email_outbox\" WHERE status = 'PENDING' AND \"nextAttemptAt\" <= NOW() " +
+            "AND (\"expiresAt\" IS NULL OR \"expiresAt\" > NOW()) ORDER BY \"nextAttemptAt\" LIMIT ? FOR UPDATE SKIP LOCKED) " +
+            "RETURNING \"id\", \"recipient\", \"name\", \"subject\", \"htmlBody\"";
+
+    private static final String SQL_SENT = "UPDATE \"email_outbox\" SET status = 'SENT', \"sentAt\" = NOW(), \"htmlBody\" = NULL, \"lastError\" = NULL " +
+            "WHERE \"id\" = ? AND status = 'PENDING'";
+
+    // Backs off a minute per attempt so far; gives up once out of attempts
+    private static final String SQL_FAILED = "UPDATE \"email_outbox\" SET \"lastError\" = ?, " +
+            "\"nextAttemptAt\" = NOW() + INTERVAL '1 minute' * \"attempts\", " +
+            "\"htmlBody\" = CASE WHEN \"attempts\" >= ? THEN NULL ELSE \"htmlBody\" END, " +
+            "status = CASE WHEN \"attempts\" >= ? THEN 'FAILED' ELSE status END " +
+            "WHERE \"id\" = ? AND status = 'PENDING'";
+
+    // Not accepted by the dispatcher (queue full): try again shortly without using up an attempt
+    private static final String SQL_RELEASE = "UPDATE \"email_outbox\" SET \"attempts\" = \"attempts\" - 1, \"nextAttemptAt\" = NOW() + INTERVAL '10 seconds' " +
+            "WHERE \"id\" = ? AND status = 'PENDING'";
+
+    private static final String SQL_RENEW = "UPDATE \"email_outbox\" SET \"nextAttemptAt\" = NOW() + INTERVAL '" + LEASE_MINUTES + " minutes' " +
+            "WHERE \"id\" = ANY(?) AND status = 'PENDING'";
+
+    private static final String SQL_EXPIRE = "UPDATE \"email_outbox\" SET status = 'EXPIRED', \"htmlBody\" = NULL " +
+            "WHERE status = 'PENDING' AND \"expiresAt\" <= NOW()";
+
+    // The outcome of a claimed row, reported by the dispatcher
+    private static class Outcome {
+        final long id;
+        final String error; // null when sent
+
+        Outcome(long id, String error) {
+            this.id = id;
+            this.error = error;
+        }
+    }
+
+    private static final ConcurrentLinkedQueue<Outcome> outcomes = new ConcurrentLinkedQueue<>();
+    // Rows handed to the dispatcher and not yet reported, with when they were claimed
+    private static final Map<Long, Long> inFlight = new ConcurrentHashMap<>();
+    private static final Object signal = new Object();
+    private static boolean woken = false; // Guarded by signal
+
+    private static final AtomicLong enqueued = new AtomicLong();
+    private static final AtomicLong claimed = new AtomicLong();
+    private static final AtomicLong sent = new AtomicLong();
+    private static final AtomicLong failed = new AtomicLong();
+    private static final AtomicLong released = new AtomicLong();
+    private static final AtomicLong expired = new AtomicLong();
+    private static final AtomicLong renewed = new AtomicLong();
+    private static final AtomicLong relayErrors = new AtomicLong();
+    private static volatile String lastError = null;
+    private static volatile long lastPollAt = 0;
+
+    private static volatile Thread relay = null;
+    private static volatile int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+
+    /**
+     * Adds a message to the outbox on the caller's connection, inside its transaction.
+     * It is sent only if that transaction commits, and never after expiresAt (null for no
+     * expiry). Call wake() after the commit to have it sent straight away.
+     */
+    public static void enqueue(Connection conn, String email, String name, String subject, String htmlBody, Timestamp expiresAt) throws SQLException {
+        try (PreparedStatement pstmt = conn.prepareStatement(SQL_ENQUEUE)) {
+            pstmt.setString(1, email);
+            pstmt.setString(2, name != null ? name : "");
+            pstmt.setString(3, subject);
+            pstmt.setString(4, htmlBody);
+            pstmt.setTimestamp(5, expiresAt);
+            pstmt.executeUpdate();
+        }
+        enqueued.incrementAndGet();
+    }
+
+    /**
+     * Has the relay look at the outbox now rather than at its next poll.
+     */
+    public static void wake() {
+        synchronized (signal) {
+            woken = true;
+            signal.notify();
+        }
+    }
+
+    public static synchronized void start() {
+        if (relay != null) {
+            return;
+        }
+        maxAttempts = Math.max(1, SystemConfig.getIntProperty("framework.mail.outbox.max_attempts", DEFAULT_MAX_ATTEMPTS));
+        Thread thread = new Thread(EmailOutbox::run, "tsi-mail-outbox");
+        thread.setDaemon(true);
+        relay = thread;
+        thread.start();
+        System.out.println("Email outbox relay started");
+    }
+
+    public static synchronized void stop() {
+        Thread thread = relay;
+        if (thread == null) {
+            return;
+        }
+        relay = null;
+        thread.interrupt();
+        try {
+            thread.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // Rows still in flight keep their lease and are claimed again after a restart
+    }
+
+    private static void run() {
+        long lastExpiry = 0;
+        long lastRenewal = System.currentTimeMillis();
+        while (relay == Thread.currentThread()) {
+            int claimedNow = 0;
+            try {
+                record();
+                if (System.currentTimeMillis() - lastExpiry >= POLL_MS) {
+                    expire();
+                    lastExpiry = System.currentTimeMillis();
+                }
+                if (System.currentTimeMillis() - lastRenewal >= RENEW_MS) {
+                    renew();
+                    lastRenewal = System.currentTimeMillis();
+                }
+                claimedNow = claim();
+                lastPollAt = System.currentTimeMillis();
+            } catch (SQLException e) {
+                relayErrors.incrementAndGet();
+                lastError = e.getMessage();
+                System.err.println("Email outbox relay: " + e.getMessage());
+            }
+            if (claimedNow < CLAIM_BATCH) {
+                try {
+                    synchronized (signal) {
+                        if (!woken) {
+                            signal.wait(POLL_MS);
+                        }
+                        woken = false;
+                    }
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }
+        try {
+            record(); // Outcomes already in hand
+        } catch (SQLException e) {
+            System.err.println("Email outbox relay: " + e.getMessage());
+        }
+    }
+
+    // Claims due rows and hands them to the dispatcher; returns the number claimed
+    private static int claim() throws SQLException {
+        List<Long> notAccepted = new ArrayList<>();
+        int count = 0;
+        try (PoolDB pool = new PoolDB();
+             PreparedStatement pstmt = pool.getConnection().prepareStatement(SQL_CLAIM)) {
+            pstmt.setInt(1, CLAIM_BATCH);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    count++;
+                    long id = rs.getLong("id");
+                    inFlight.put(id, System.currentTimeMillis()); // Before sending: the outcome may be reported at once
+                    boolean accepted = MailDispatcher.sendOnce(rs.getString("recipient"), rs.getString("name"),
+                            rs.getString("subject"), rs.getString("htmlBody"), new MailDispatcher.Listener() {
+                                @Override
+                                public void sent() {
+                                    report(new Outcome(id, null));
+                                }
+
+                                @Override
+                                public void failed(String reason) {
+                                    report(new Outcome(id, reason != null ? reason : "Unknown error"));
+                                }
+                            });
+                    if (!accepted) {
+                        inFlight.remove(id);
+                        notAccepted.add(id);
+                    }
+                }
+            }
+            claimed.addAndGet(count);
+            if (!notAccepted.isEmpty()) {
+                try (PreparedStatement release = pool.getConnection().prepareStatement(SQL_RELEASE)) {
+                    for (long id : notAccepted) {
+                        release.setLong(1, id);
+                        release.addBatch();
+                    }
+                    release.executeBatch();
+                }
+                released.addAndGet(notAccepted.size());
+            }
+        }
+        return count;
+    }
+
+    private static void report(Outcome outcome) {
+        inFlight.remove(outcome.id);
+        outcomes.add(outcome);
+        wake();
+    }
+
+    // Writes back the outcomes reported since the last pass
+    private static void record() throws SQLException {
+        if (outcomes.isEmpty()) {
+            return;
+        }
+        List<Outcome> batch = new ArrayList<>();
+        Outcome outcome;
+        while ((outcome = outcomes.poll()) != null) {
+            batch.add(outcome);
+        }
+        try (PoolDB pool = new PoolDB()) {
+            pool.transaction(conn -> {
+                try (PreparedStatement sentStmt = conn.prepareStatement(SQL_SENT);
+                     PreparedStatement failedStmt = conn.prepareStatement(SQL_FAILED)) {
+                    for (Outcome o : batch) {
+                        if (o.error == null) {
+                            sentStmt.setLong(1, o.id);
+                            sentStmt.addBatch();
+                        } else {
+                            String error = o.error.length() > MAX_ERROR_LENGTH ? o.error.substring(0, MAX_ERROR_LENGTH) : o.error;
+                            failedStmt.setString(1, error);
+                            failedStmt.setInt(2, maxAttempts);
+                            failedStmt.setInt(3, maxAttempts);
+                            failedStmt.setLong(4, o.id);
+                            failedStmt.addBatch();
+                        }
+                    }
+                    sentStmt.executeBatch();
+                    failedStmt.executeBatch();
+                }
+                return null;
+            });
+        } catch (SQLException e) {
+            outcomes.addAll(batch); // Written on the next pass; the lease covers the wait
+            throw e;
+        }
+        for (Outcome o : batch) {
+            (o.error == null ? sent : failed).incrementAndGet();
+        }
+    }
+
+    // Extends the lease of rows the dispatcher still holds; lets go of any held implausibly long
+    private static void renew() throws SQLException {
+        long now = System.currentTimeMillis();
+        List<Long> ids = new ArrayList<>();
+        for (Map.Entry<Long, Long> entry : inFlight.entrySet()) {
+            if (now - entry.getValue() > MAX_IN_FLIGHT_MS) {
+                inFlight.remove(entry.getKey());
+                System.err.println("Email outbox: no outcome for message " + entry.getKey() + ", leaving it to be claimed again");
+            } else {
+                ids.add(entry.getKey());
+            }
+        }
+        if (ids.isEmpty()) {
+            return;
+        }
+        try (PoolDB pool = new PoolDB()) {
+            Connection conn = pool.getConnection();
+            try (PreparedStatement pstmt = conn.prepareStatement(SQL_RENEW)) {
+                pstmt.setArray(1, conn.createArrayOf("bigint", ids.toArray()));
+                renewed.addAndGet(pstmt.executeUpdate());
+            }
+        }
+    }
+
+    private static void expire() throws SQLException {
+        try (PoolDB pool = new PoolDB();
+             PreparedStatement pstmt = pool.getConnection().prepareStatement(SQL_EXPIRE)) {
+            expired.addAndGet(pstmt.executeUpdate());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public static JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        stats.put("running", relay != null);
+        stats.put("enqueued", enqueued.get());
+        stats.put("claimed", claimed.get());
+        stats.put("sent", sent.get());
+        stats.put("failed_attempts", failed.get());
+        stats.put("released", released.get());
+        stats.put("expired", expired.get());
+        stats.put("in_flight", inFlight.size());
+        stats.put("leases_renewed", renewed.get());
+        stats.put("outcomes_pending", outcomes.size());
+        stats.put("relay_errors", relayErrors.get());
+        stats.put("max_attempts", maxAttempts);
+        stats.put("last_poll_at", lastPollAt);
+        if (lastError != null) {
+            stats.put("last_error", lastError);
+        }
+        return stats;
+    }
+}
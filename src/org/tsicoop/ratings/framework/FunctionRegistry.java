@@ -0,0 +1,31 @@
+package org.tsicoop.ratings.framework;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Collects the _func handlers an Action registers while the routing table is built.
+ */
+public class FunctionRegistry {
+
+    private final Map<String, ApiFunction> functions = new LinkedHashMap<>();
+
+    /**
+     * Registers a handler for a _func. Functions require a token and validate against
+     * the schema of the same name unless configured otherwise on the returned ApiFunction.
+     */
+    public ApiFunction register(String func, ApiFunction.Handler handler) {
+        String name = func.toLowerCase();
+        if (functions.containsKey(name)) {
+            throw new IllegalStateException("Duplicate handler registered for _func: " + func);
+        }
+        ApiFunction function = new ApiFunction(name, handler);
+        functions.put(name, function);
+        return function;
+    }
+
+    public Map<String, ApiFunction> getFunctions() {
+        return Collections.unmodifiableMap(functions);
+    }
+}
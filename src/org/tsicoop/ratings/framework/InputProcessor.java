@@ -1,43 +1,36 @@
 package org.tsicoop.ratings.framework;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.networknt.schema.ValidationMessage;
+import io.jsonwebtoken.Claims;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
 
-import java.io.BufferedReader;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
-import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.Set;
 import java.util.StringTokenizer;
-import java.util.UUID;
 
 public class InputProcessor {
     public final static String REQUEST_DATA = "input_json";
     public final static String AUTH_TOKEN = "auth_token";
+    public final static String REQUEST_VALIDATED = "input_validated";
 
-    public static void processInput(HttpServletRequest request, HttpServletResponse response){
-        String contentType = request.getContentType();
-        StringBuilder buffer = new StringBuilder();
+    public static boolean processInput(HttpServletRequest request, HttpServletResponse response){
         try {
-            BufferedReader reader = request.getReader();
-            String line = null;
-            while ((line = reader.readLine()) != null) {
-                //System.out.println("line"+line);
-                buffer.append(line);
-                buffer.append(System.lineSeparator());
-            }
-            String data = buffer.toString();
-            //System.out.println(data);
-            request.setAttribute(REQUEST_DATA, data);
+            // Parsed once from the raw bytes; validator and Actions reuse the same RequestBody
+            request.setAttribute(REQUEST_DATA, BodyReader.read(request));
+        }catch (BodyReader.PayloadTooLargeException e){
+            // errorResponse only puts the status in the body
+            response.setStatus(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+            OutputProcessor.errorResponse(response, HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, "Payload Too Large", e.getMessage(), request.getRequestURI());
+            return false;
         }catch (Exception e){
             e.printStackTrace();
         }
+        return true;
     }
 
     public static boolean processAdminHeader(HttpServletRequest request, HttpServletResponse response) {
@@ -63,7 +56,7 @@ public class InputProcessor {
             return false;
         }
 
-        // Validate API Key and Secret against the api_user table
+        // Validate API Key and Secret against the cached api_keys table
         try {
             if (!isValidApiClient(apiKey, apiSecret)) {
                 OutputProcessor.errorResponse(res, HttpServletResponse.SC_UNAUTHORIZED, "Unauthorized", "Invalid or inactive API Key/Secret.", req.getRequestURI());
@@ -81,28 +74,7 @@ public class InputProcessor {
     }
 
     private static boolean isValidApiClient(String apiKey, String apiSecret) throws SQLException {
-        boolean valid = false;
-        Connection conn = null;
-        PreparedStatement pstmt = null;
-        ResultSet rs = null;
-        PoolDB pool = new PoolDB();
-        String sql = "SELECT status FROM api_keys WHERE id = ? AND key_value = ?";
-        try {
-            conn = pool.getConnection();
-            pstmt = conn.prepareStatement(sql);
-            pstmt.setObject(1, UUID.fromString(apiKey));
-            pstmt.setString(2, apiSecret);
-            rs = pstmt.executeQuery();
-            if(rs.next()){
-                String status = rs.getString("status");
-                if(status.equalsIgnoreCase("ACTIVE")){
-                    valid = true;
-                }
-            }
-        } finally {
-            pool.cleanup(rs, pstmt, conn);
-        }
-        return valid;
+        return ApiKeyCache.isValid(apiKey, apiSecret);
     }
 
     public static String getEmail(HttpServletRequest req){
@@ -203,12 +175,12 @@ public class InputProcessor {
             strTok = new StringTokenizer(authorization, " ");
             strTok.nextToken();
             token = strTok.nextToken();
-            if (JWTUtil.isTokenValid(token)) {
+            Claims claims = JWTUtil.getClaims(token);
+            if (claims != null) {
                 tokenDetails = new JSONObject();
-                tokenDetails.put("email",JWTUtil.getEmailFromToken(token));
-                tokenDetails.put("userId",JWTUtil.getUserIdFromToken(token));
-                tokenDetails.put("role",JWTUtil.getRoleFromToken(token));
-                //System.out.println("name:"+JWTUtil.getUsernameFromToken(token)+" role:"+JWTUtil.getRoleFromToken(token));
+                tokenDetails.put("email",claims.getSubject());
+                tokenDetails.put("userId",claims.get("userId"));
+                tokenDetails.put("role",claims.get("role"));
             }
         }catch (Exception e){
             e.printStackTrace();
@@ -219,35 +191,49 @@ public class InputProcessor {
 
     public static JSONObject getInput(HttpServletRequest req) throws Exception{
         JSONObject input = null;
-        String inputs = null;
         try {
-            inputs = (String) req.getAttribute(InputProcessor.REQUEST_DATA);
-            if(inputs!=null) inputs = inputs.trim();
-            //System.out.println("inputs:"+inputs);
-            //inputs = applyRules(inputs);
-            input = (JSONObject) new JSONParser().parse(inputs);
+            RequestBody body = (RequestBody) req.getAttribute(InputProcessor.REQUEST_DATA);
+            if(body != null) input = body.getJSONObject();
         }catch(Exception e){
             e.printStackTrace();
         }
         return input;
     }
 
+    public static JsonNode getInputTree(HttpServletRequest req) {
+        RequestBody body = (RequestBody) req.getAttribute(InputProcessor.REQUEST_DATA);
+        return body != null ? body.getTree() : null;
+    }
+
     public static boolean validate(HttpServletRequest req, HttpServletResponse res) {
+        return validate(req, res, null);
+    }
 
-        JSONObject input = null;
+    /**
+     * Validates the request body against the named schema, or against the schema
+     * named after its _func when schema is null.
+     */
+    public static boolean validate(HttpServletRequest req, HttpServletResponse res, String schema) {
+
+        JsonNode input = null;
         Set<ValidationMessage> errors = null;
         boolean valid = true;
         String func = null;
 
+        // The filter and the Action both validate; the body only needs checking once
+        if (Boolean.TRUE.equals(req.getAttribute(REQUEST_VALIDATED))) {
+            return true;
+        }
+
         try {
-            input = InputProcessor.getInput(req);
-            func = (String) input.get("_func");
+            input = InputProcessor.getInputTree(req);
+            func = input.path("_func").textValue();
 
             if(func == null){
                 OutputProcessor.sendError(res,HttpServletResponse.SC_BAD_REQUEST,"_func missing");
                 valid = false;
             }else{
-                errors = JSONSchemaValidator.getHandle().validateSchema(func, input);
+                errors = JSONSchemaValidator.getHandle().validateSchema(schema != null ? schema : func, input);
             }
 
             if(errors != null && errors.size()>0) {
@@ -260,6 +246,9 @@ public class InputProcessor {
             OutputProcessor.sendError(res,HttpServletResponse.SC_BAD_REQUEST,"Unknown input validation error");
             valid = false;
         }
+        if (valid) {
+            req.setAttribute(REQUEST_VALIDATED, Boolean.TRUE);
+        }
         return valid;
     }
 
@@ -4,8 +4,10 @@ import jakarta.servlet.*;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import org.json.simple.JSONObject;
+import org.json.simple.parser.ParseException;
 
 import java.io.IOException;
+import java.sql.SQLException;
 import java.util.*;
 
 
@@ -31,20 +33,21 @@ public class InterceptingFilter implements Filter {
             // Add other client-facing functions as needed
     ));
 
-    private static final Set<String> ADMIN_NOAUTH_FUNCS = new HashSet<>(Arrays.asList(
-            "request_otp",
-            "register_user",
-            "login_otp",
-            "login",
-            "get_dma_assessment_details",
-            "validate_assessment"
-    ));
-
     private static final HashMap<String, String> filterConfig = new HashMap<>(); // Unused in original, keeping for template consistency
 
+    // Immutable routing table built at init, keyed by request URI (e.g. /api/v1/dma, /api/v1/client/dma)
+    private static volatile Map<String, Route> routes = Collections.emptyMap();
+
+    // Every registered handler keyed by service.func, for latency reporting
+    private static volatile Map<String, ApiFunction> functionIndex = Collections.emptyMap();
+
     @Override
     public void destroy() {
         // Any cleanup of resources
+        ApiKeyCache.stopListener();
+        EmailOutbox.stop();
+        MailDispatcher.stop();
+        PoolDB.shutdown();
     }
 
     static {
@@ -70,7 +73,8 @@ public class InterceptingFilter implements Filter {
         // CORS headers are crucial for frontend access from different origins
         res.setHeader("Access-Control-Allow-Origin", "*"); // For development, allow all. Restrict in production.
         res.setHeader("Access-Control-Allow-Methods", "GET, POST, PUT, DELETE, OPTIONS");
-        res.setHeader("Access-Control-Allow-Headers", "Origin, Content-Type, Accept, Authorization, X-API-KEY");
+        res.setHeader("Access-Control-Allow-Headers", "Origin, Content-Type, Accept, Authorization, X-API-KEY, If-None-Match");
+        res.setHeader("Access-Control-Expose-Headers", "ETag, Retry-After");
         res.setHeader("Access-Control-Max-Age", "3600");
         res.setCharacterEncoding("UTF-8");
         res.setContentType("application/json");
@@ -81,75 +85,52 @@ public class InterceptingFilter implements Filter {
             return;
         }
 
-        Properties apiRegistry = SystemConfig.getProcessorConfig(); // Assuming this loads servlet mappings
-        // Properties config = SystemConfig.getAppConfig(); // Unused in original, keeping for template consistency
-
         // Check if the request URI starts with our API prefix
         if (!uri.startsWith(API_PREFIX)) {
             chain.doFilter(request, response); // Not an API call we manage, pass through
             return;
         }
 
-        // Determine if it's an Admin or Client API call based on path
-        String pathAfterApiPrefix = uri.substring(API_PREFIX.length()); // e.g., "user", "policy", "admin/user", "client/consent"
-        String[] pathSegments = pathAfterApiPrefix.split(URL_DELIMITER);
-
-        String apiCategory = null; // "admin" or "client"
-        String serviceName = null; // "user", "policy", "consent" etc.
-
-        if (pathSegments.length >= 1) {
-            if (ADMIN_URI_PATH.equalsIgnoreCase(pathSegments[0])) {
-                apiCategory = ADMIN_URI_PATH;
-                if (pathSegments.length >= 2) {
-                    serviceName = pathSegments[1]; // e.g., /api/v1/admin/user -> serviceName "user"
-                }
-            } else if (CLIENT_URI_PATH.equalsIgnoreCase(pathSegments[0])) {
-                apiCategory = CLIENT_URI_PATH;
-                if (pathSegments.length >= 2) {
-                    serviceName = pathSegments[1]; // e.g., /api/v1/client/consent -> serviceName "consent"
-                }
-            } else if (BOOTSTRAP_URI_PATH.equalsIgnoreCase(pathSegments[0])) {
-                apiCategory = BOOTSTRAP_URI_PATH;
-                if (pathSegments.length >= 2) {
-                    serviceName = pathSegments[1]; // e.g., /api/v1/client/consent -> serviceName "consent"
-                }
-            } else {
-                // If it's directly /api/v1/user or /api/v1/policy, assume it's an admin endpoint by default
-                // Or, you could make it explicitly invalid if not prefixed with /admin or /client
-                apiCategory = ADMIN_URI_PATH; // Default to admin if no explicit category
-                serviceName = pathSegments[0];
-            }
-        }
-
-        // Construct the full servlet path for lookup in apiRegistry
-        // This assumes apiRegistry stores paths like "/api/v1/user" not "/api/v1/admin/user"
-        // If your apiRegistry stores "/api/v1/admin/user", then use servletPath directly.
-        String targetServletPath = API_PREFIX + (serviceName != null ? serviceName : "");
-        //System.out.println("Target Servlet Path:"+targetServletPath);
-
-        if (!apiRegistry.containsKey(targetServletPath.trim())) {
+        // Category, service and Action were all resolved when the filter was initialised
+        Route route = resolveRoute(uri);
+        if (route == null) {
             OutputProcessor.errorResponse(res, HttpServletResponse.SC_NOT_FOUND, "Not Found", "API endpoint not found: " + uri, uri);
             return;
         }
-
-        String classname = apiRegistry.getProperty(targetServletPath.trim());
-        if (classname == null) {
-            OutputProcessor.errorResponse(res, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Configuration Error", "Servlet class not mapped for: " + uri, uri);
-            return;
-        }
+        String apiCategory = route.getCategory(); // "admin", "client" or "bootstrap"
 
         boolean authenticated = false;
+        boolean admitted = false;
         String errorMessage = "Authentication failed.";
 
         // --- Authentication & Authorization ---
         try {
-            InputProcessor.processInput(req, res);
+            // --- Load shedding, before the body is read ---
+            if (route.isSheddable()) {
+                if (!LoadShedder.enter()) {
+                    tooManyRequests(res, LoadShedder.RETRY_AFTER_SECONDS, "The service is busy. Please retry shortly.", uri);
+                    return;
+                }
+                admitted = true;
+            }
+
+            if (!InputProcessor.processInput(req, res)) {
+                return; // Error response already sent by InputProcessor
+            }
             JSONObject inputJson = InputProcessor.getInput(req); // InputProcessor should parse and set this
-            String func = (String) inputJson.get("_func");
+            String func = inputJson != null ? (String) inputJson.get("_func") : null;
+            ApiFunction function = func != null ? route.getFunction(func.toLowerCase()) : null;
+
+            // --- Rate limits by client IP, before validation; client APIs are limited once their key is verified ---
+            boolean clientApi = CLIENT_URI_PATH.equalsIgnoreCase(apiCategory);
+            if (!clientApi && !withinRateLimit(req, res, function, func, null, uri)) {
+                return;
+            }
 
             // --- Validate _func and specific permissions for POST requests ---
             if ("POST".equalsIgnoreCase(method)) {
-                if (!InputProcessor.validate(req, res)) { // Validates content-type and basic body parsing
+                String schema = function != null ? function.getSchema() : func;
+                if (!InputProcessor.validate(req, res, schema)) { // Validates content-type and basic body parsing
                     return; // Error response already sent by InputProcessor
                 }
                 if (inputJson == null) { // Should not happen if InputProcessor.validate passed
@@ -182,7 +163,7 @@ public class InterceptingFilter implements Filter {
             }
 
             if (ADMIN_URI_PATH.equalsIgnoreCase(apiCategory)) {
-                if (ADMIN_NOAUTH_FUNCS.contains(func.toLowerCase())) {
+                if (function != null && function.getAuth() == ApiFunction.Auth.PUBLIC) {
                     authenticated = true;
                 }else{
                     authenticated = InputProcessor.processAdminHeader(req, res);
@@ -202,40 +183,228 @@ public class InterceptingFilter implements Filter {
                 OutputProcessor.errorResponse(res, HttpServletResponse.SC_UNAUTHORIZED, "Unauthorized", errorMessage, uri);
                 return;
             }
+            if (clientApi && !withinRateLimit(req, res, function, func, req.getHeader("X-API-Key"), uri)) {
+                return;
+            }
 
 
-            // --- Instantiate and execute Servlet ---
-            Action action = ((Action) Class.forName(classname).getConstructor().newInstance());
+            // --- Execute the shared Action instance ---
+            Action action = route.getAction();
 
             // The service's own validate method (e.g., checking method, specific input fields)
             boolean validRequest = action.validate(method, req, res);
             if (validRequest) {
                 // Call the appropriate method on the REST service
                 if (method.equalsIgnoreCase("POST")) { // All our services use POST
-                    action.post(req, res);
+                    if (function != null) {
+                        function.invoke(req, res, inputJson); // O(1) dispatch, latency recorded per _func
+                    } else {
+                        action.post(req, res);
+                    }
                 } else {
                     // This should ideally not be reached if validate method correctly handles non-POST
                     res.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED, "Method Not Allowed");
                 }
             }
 
-        } catch (ClassNotFoundException | NoSuchMethodException | InstantiationException | IllegalAccessException | java.lang.reflect.InvocationTargetException e) {
+        } catch (SecurityException e) {
+            OutputProcessor.errorResponse(res, HttpServletResponse.SC_FORBIDDEN, "Forbidden", e.getMessage(), uri);
+        } catch (SQLException e) {
+            e.printStackTrace();
+            OutputProcessor.errorResponse(res, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Database Error", "A database error occurred: " + e.getMessage(), uri);
+        } catch (ParseException e) {
             e.printStackTrace();
-            OutputProcessor.errorResponse(res, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Server Error", "Failed to instantiate API handler: " + e.getMessage(), uri);
+            OutputProcessor.errorResponse(res, HttpServletResponse.SC_BAD_REQUEST, "Bad Request", "Invalid JSON input: " + e.getMessage(), uri);
         } catch (Exception e) { // Catch any other unexpected exceptions
             e.printStackTrace();
             OutputProcessor.errorResponse(res, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Internal Server Error", "An unexpected error occurred: " + e.getMessage(), uri);
+        } finally {
+            if (admitted) {
+                LoadShedder.exit();
+            }
+        }
+    }
+
+    // Takes a token for the caller; answers 429 and returns false when it has none left
+    private static boolean withinRateLimit(HttpServletRequest req, HttpServletResponse res, ApiFunction function, String func, String verifiedApiKey, String uri) {
+        if (function == null || function.getRateLimiter() == null || !RateLimiter.isEnabled()) {
+            return true;
+        }
+        long waitMillis = function.getRateLimiter().acquire(RateLimiter.callerOf(req, verifiedApiKey));
+        if (waitMillis > 0) {
+            tooManyRequests(res, (int) Math.max(1, (waitMillis + 999) / 1000), "Rate limit exceeded for '" + func + "'.", uri);
+            return false;
+        }
+        return true;
+    }
+
+    private static void tooManyRequests(HttpServletResponse res, int retryAfterSeconds, String message, String uri) {
+        res.setStatus(429);
+        res.setHeader("Retry-After", String.valueOf(retryAfterSeconds));
+        OutputProcessor.errorResponse(res, 429, "Too Many Requests", message, uri);
+    }
+
+    /**
+     * Looks up the route for a request URI. Canonical paths hit the table directly;
+     * other forms (mixed-case category, extra trailing segments) are parsed the slow way
+     * and mapped back onto their canonical key.
+     */
+    private static Route resolveRoute(String uri) {
+        Route route = routes.get(uri);
+        if (route != null) {
+            return route;
+        }
+
+        // Determine if it's an Admin or Client API call based on path
+        String pathAfterApiPrefix = uri.substring(API_PREFIX.length()); // e.g., "user", "policy", "admin/user", "client/consent"
+        String[] pathSegments = pathAfterApiPrefix.split(URL_DELIMITER);
+
+        String apiCategory = null; // "admin" or "client"
+        String serviceName = null; // "user", "policy", "consent" etc.
+
+        if (pathSegments.length >= 1) {
+            if (ADMIN_URI_PATH.equalsIgnoreCase(pathSegments[0])) {
+                apiCategory = ADMIN_URI_PATH;
+            } else if (CLIENT_URI_PATH.equalsIgnoreCase(pathSegments[0])) {
+                apiCategory = CLIENT_URI_PATH;
+            } else if (BOOTSTRAP_URI_PATH.equalsIgnoreCase(pathSegments[0])) {
+                apiCategory = BOOTSTRAP_URI_PATH;
+            }
+            if (apiCategory != null) {
+                if (pathSegments.length >= 2) {
+                    serviceName = pathSegments[1]; // e.g., /api/v1/client/consent -> serviceName "consent"
+                }
+            } else {
+                // If it's directly /api/v1/user or /api/v1/policy, assume it's an admin endpoint by default
+                apiCategory = ADMIN_URI_PATH;
+                serviceName = pathSegments[0];
+            }
+        }
+        if (serviceName == null) {
+            return null;
+        }
+        return routes.get(API_PREFIX + apiCategory + URL_DELIMITER + serviceName.trim());
+    }
+
+    /**
+     * Instantiates every Action mapped in _processor.tsi exactly once and registers it under
+     * each category path. A missing or misconfigured Action fails startup instead of the first request.
+     */
+    private static Map<String, Route> buildRoutes(Properties apiRegistry) throws ServletException {
+        Map<String, Route> table = new HashMap<>();
+        Map<String, ApiFunction> index = new TreeMap<>();
+        for (String path : apiRegistry.stringPropertyNames()) {
+            String servicePath = path.trim();
+            if (!servicePath.startsWith(API_PREFIX)) {
+                System.err.println("Ignoring processor mapping outside " + API_PREFIX + ": " + servicePath);
+                continue;
+            }
+            String serviceName = servicePath.substring(API_PREFIX.length());
+            Action action = createAction(apiRegistry.getProperty(path).trim());
+
+            FunctionRegistry registry = new FunctionRegistry();
+            action.register(registry);
+            Map<String, ApiFunction> functions = registry.getFunctions();
+            for (ApiFunction function : functions.values()) {
+                index.put(serviceName + Action.DELIMITER + function.getName(), function);
+            }
+
+            Route adminRoute = new Route(ADMIN_URI_PATH, serviceName, action, functions);
+            table.put(API_PREFIX + serviceName, adminRoute); // Default category is admin
+            table.put(API_PREFIX + ADMIN_URI_PATH + URL_DELIMITER + serviceName, adminRoute);
+            table.put(API_PREFIX + CLIENT_URI_PATH + URL_DELIMITER + serviceName, new Route(CLIENT_URI_PATH, serviceName, action, functions));
+            table.put(API_PREFIX + BOOTSTRAP_URI_PATH + URL_DELIMITER + serviceName, new Route(BOOTSTRAP_URI_PATH, serviceName, action, functions));
+        }
+        functionIndex = Collections.unmodifiableMap(index);
+        return Collections.unmodifiableMap(table);
+    }
+
+    /**
+     * Rate limit counters of every _func that has a limit, keyed by service.func.
+     */
+    private static JSONObject getRateLimitStats() {
+        JSONObject stats = new JSONObject();
+        stats.put("enabled", RateLimiter.isEnabled());
+        JSONObject functions = new JSONObject();
+        for (Map.Entry<String, ApiFunction> entry : functionIndex.entrySet()) {
+            if (entry.getValue().getRateLimiter() != null) {
+                functions.put(entry.getKey(), entry.getValue().getRateLimiter().getStats());
+            }
+        }
+        stats.put("functions", functions);
+        return stats;
+    }
+
+    /**
+     * Latency histogram of every registered _func, keyed by service.func.
+     */
+    private static JSONObject getFunctionStats() {
+        JSONObject stats = new JSONObject();
+        for (Map.Entry<String, ApiFunction> entry : functionIndex.entrySet()) {
+            stats.put(entry.getKey(), entry.getValue().getLatency().toJSON());
+        }
+        return stats;
+    }
+
+    /**
+     * One instance of each Action serves all concurrent requests, so Actions must not keep
+     * per-request state: every instance field has to be final.
+     */
+    private static Action createAction(String classname) throws ServletException {
+        try {
+            Class<?> actionClass = Class.forName(classname);
+            for (Class<?> c = actionClass; c != null && c != Object.class; c = c.getSuperclass()) {
+                for (java.lang.reflect.Field field : c.getDeclaredFields()) {
+                    int modifiers = field.getModifiers();
+                    if (!java.lang.reflect.Modifier.isStatic(modifiers) && !java.lang.reflect.Modifier.isFinal(modifiers)) {
+                        throw new ServletException("Action " + classname + " must be stateless but declares mutable field '" + field.getName() + "'");
+                    }
+                }
+            }
+            return (Action) actionClass.getConstructor().newInstance();
+        } catch (ServletException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new ServletException("Failed to instantiate API handler " + classname + ": " + e.getMessage(), e);
         }
     }
 
     @Override
     public void init(FilterConfig filterConfig) throws ServletException {
-        SystemConfig.loadProcessorConfig(filterConfig.getServletContext()); // Assuming this method name
-        System.out.println("Loaded TSI Processor Config");
+        // App config first: Actions read it when they register their functions
         SystemConfig.loadAppConfig(filterConfig.getServletContext());
         System.out.println("Loaded TSI App Config");
+        SystemConfig.loadProcessorConfig(filterConfig.getServletContext()); // Assuming this method name
+        System.out.println("Loaded TSI Processor Config");
+        routes = buildRoutes(SystemConfig.getProcessorConfig());
+        System.out.println("Built TSI routing table with " + routes.size() + " routes");
+        try {
+            PoolDB.init(SystemConfig.getAppConfig());
+        } catch (RuntimeException e) {
+            System.err.println("Database pool not initialized, will retry on first use: " + e.getMessage());
+        }
+        BodyReader.configure();
+        RateLimiter.configure();
+        LoadShedder.configure();
+        JWTUtil.configure();
+        ApiKeyCache.configure();
+        ApiKeyCache.startListener();
+        MailDispatcher.start();
+        EmailOutbox.start();
         JSONSchemaValidator.createInstance(filterConfig.getServletContext());
         System.out.println("Loaded TSI Schema Validator");
+        TemplateStore.load(filterConfig.getServletContext());
+        MetricsRegistry.register("functions", InterceptingFilter::getFunctionStats);
+        MetricsRegistry.register("schemas", () -> JSONSchemaValidator.getHandle().getStats());
+        MetricsRegistry.register("jwt_cache", JWTUtil::getCacheStats);
+        MetricsRegistry.register("api_key_cache", ApiKeyCache::getStats);
+        MetricsRegistry.register("db_pool", PoolDB::getStats);
+        MetricsRegistry.register("db_replica_pool", PoolDB::getReplicaStats);
+        MetricsRegistry.register("templates", TemplateStore::getStats);
+        MetricsRegistry.register("mail", MailDispatcher::getStats);
+        MetricsRegistry.register("mail_outbox", EmailOutbox::getStats);
+        MetricsRegistry.register("rate_limits", InterceptingFilter::getRateLimitStats);
+        MetricsRegistry.register("load_shedding", LoadShedder::getStats);
         System.out.println("TSI Ratings Service started in " + System.getenv("TSI_RATINGS_ENV") + " environment");
 
         // Initialize JWT and API Key validators here if they need global 5
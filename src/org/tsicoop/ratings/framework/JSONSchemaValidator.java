@@ -7,14 +7,26 @@ import jakarta.servlet.ServletContext;
 import org.json.simple.JSONObject;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 public class JSONSchemaValidator {
+    private static final String SCHEMA_DIR = "/WEB-INF/validator/";
+    private static final String SCHEMA_EXT = ".jschema";
+    // How often a request thread may look for changed or new schema files
+    private static final long RELOAD_CHECK_INTERVAL_MS = 5000L;
+
     private static JSONSchemaValidator jsv = null;
     private ServletContext ctx = null;
     private JSONSchemaValidator(ServletContext ctx){
@@ -23,8 +35,21 @@ public class JSONSchemaValidator {
 
     private ObjectMapper mapper = new ObjectMapper();
 
+    // A single factory is thread safe and caches meta-schemas across compilations
+    private final JsonSchemaFactory factory = JsonSchemaFactory.getInstance(SpecVersion.VersionFlag.V7);
+
+    // Compiled schemas keyed by _func
+    private final Map<String, CompiledSchema> registry = new ConcurrentHashMap<>();
+
+    // Modification time of schema files that failed to compile, keyed by _func; only touched by the reload check
+    private final Map<String, Long> failedVersions = new ConcurrentHashMap<>();
+
+    private final AtomicLong lastReloadCheck = new AtomicLong(0L);
+
     protected static void createInstance(ServletContext ctx){
-       jsv = new JSONSchemaValidator(ctx);
+       JSONSchemaValidator validator = new JSONSchemaValidator(ctx);
+       validator.loadAll();
+       jsv = validator;
     }
 
     public static JSONSchemaValidator getHandle(){
@@ -74,15 +99,163 @@ public class JSONSchemaValidator {
     }
 
     public Set<ValidationMessage> validateSchema(String _func, JSONObject input) throws Exception{
-        Set<ValidationMessage> errors = null;
         InputStream is = new ByteArrayInputStream(input.toJSONString().getBytes());
-        JsonSchemaFactory factory = JsonSchemaFactory.getInstance(SpecVersion.VersionFlag.V7);
-        JsonSchema jsonSchema = factory.getSchema(ctx.getResourceAsStream("/WEB-INF/validator/"+_func+".jschema"));
-        JsonNode jsonNode = jsv.mapper.readTree(is);
-        errors = jsonSchema.validate(jsonNode);
+        return validateSchema(_func, jsv.mapper.readTree(is));
+    }
+
+    /**
+     * Validates an already parsed request body, avoiding a serialize/re-parse round trip.
+     */
+    public Set<ValidationMessage> validateSchema(String _func, JsonNode jsonNode) {
+        Set<ValidationMessage> errors = null;
+        CompiledSchema compiled = getCompiledSchema(_func);
+        long start = System.nanoTime();
+        errors = compiled.schema.validate(jsonNode);
+        compiled.recordValidation(System.nanoTime() - start);
         return errors;
     }
 
+    /**
+     * Returns the compiled schema for a _func, picking up edits to the
+     * underlying .jschema file at most once every RELOAD_CHECK_INTERVAL_MS.
+     */
+    private CompiledSchema getCompiledSchema(String _func) {
+        long now = System.currentTimeMillis();
+        long lastCheck = lastReloadCheck.get();
+        if (now - lastCheck >= RELOAD_CHECK_INTERVAL_MS && lastReloadCheck.compareAndSet(lastCheck, now)) {
+            reloadChanged();
+        }
+        CompiledSchema compiled = registry.get(_func);
+        if (compiled == null) {
+            throw new IllegalArgumentException("No schema registered for _func: " + _func);
+        }
+        return compiled;
+    }
+
+    /**
+     * Compiles every .jschema file under /WEB-INF/validator/ into the registry.
+     */
+    private void loadAll() {
+        long start = System.nanoTime();
+        Set<String> paths = ctx.getResourcePaths(SCHEMA_DIR);
+        if (paths != null) {
+            for (String path : paths) {
+                if (path.endsWith(SCHEMA_EXT)) {
+                    compile(path);
+                }
+            }
+        }
+        lastReloadCheck.set(System.currentTimeMillis());
+        System.out.println("Compiled " + registry.size() + " schemas in " + (System.nanoTime() - start) / 1000000 + " ms");
+    }
+
+    /**
+     * Recompiles schemas whose files changed since they were loaded, adds any new ones and
+     * drops those whose file was deleted. A schema that fails to recompile keeps serving its
+     * previous version, and is not tried again until its file changes once more.
+     */
+    private void reloadChanged() {
+        Set<String> paths = ctx.getResourcePaths(SCHEMA_DIR);
+        if (paths == null) {
+            return;
+        }
+        Set<String> present = new HashSet<>();
+        for (String path : paths) {
+            if (!path.endsWith(SCHEMA_EXT)) {
+                continue;
+            }
+            String func = funcName(path);
+            present.add(func);
+            long modified = lastModified(path);
+            CompiledSchema current = registry.get(func);
+            Long failed = failedVersions.get(func);
+            if ((current == null || modified != current.lastModified) && (failed == null || modified != failed)) {
+                if (compile(path)) {
+                    System.out.println("Reloaded schema " + path);
+                } else {
+                    System.err.println("Schema " + path + " not reloaded" + (current != null ? ", still serving the previous version" : ""));
+                }
+            }
+        }
+        for (String func : registry.keySet()) {
+            if (!present.contains(func)) {
+                registry.remove(func);
+                System.out.println("Removed schema " + SCHEMA_DIR + func + SCHEMA_EXT);
+            }
+        }
+        failedVersions.keySet().retainAll(present);
+    }
+
+    // Returns whether the schema compiled; a failure is remembered against the file's modification time
+    private boolean compile(String path) {
+        String func = funcName(path);
+        long modified = lastModified(path);
+        long start = System.nanoTime();
+        try (InputStream is = ctx.getResourceAsStream(path)) {
+            JsonSchema schema = factory.getSchema(is);
+            schema.initializeValidators();
+            registry.put(func, new CompiledSchema(schema, modified, System.nanoTime() - start));
+            failedVersions.remove(func);
+            return true;
+        } catch (Exception e) {
+            failedVersions.put(func, modified);
+            System.err.println("Error compiling schema " + path + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    private String funcName(String path) {
+        return path.substring(path.lastIndexOf('/') + 1, path.length() - SCHEMA_EXT.length());
+    }
+
+    // Unpacked deployments expose a real path; packed ones are never reloaded
+    private long lastModified(String path) {
+        String realPath = ctx.getRealPath(path);
+        return realPath != null ? new File(realPath).lastModified() : 0L;
+    }
+
+    /**
+     * Per-schema compile and validate timings, keyed by _func.
+     */
+    public JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        for (Map.Entry<String, CompiledSchema> entry : new TreeMap<>(registry).entrySet()) {
+            stats.put(entry.getKey(), entry.getValue().toJSON());
+        }
+        return stats;
+    }
+
+    private static class CompiledSchema {
+        private final JsonSchema schema;
+        private final long lastModified;
+        private final long compileNanos;
+        private final LongAdder validations = new LongAdder();
+        private final LongAdder validateNanos = new LongAdder();
+        private final AtomicLong maxValidateNanos = new AtomicLong();
+
+        private CompiledSchema(JsonSchema schema, long lastModified, long compileNanos) {
+            this.schema = schema;
+            this.lastModified = lastModified;
+            this.compileNanos = compileNanos;
+        }
+
+        private void recordValidation(long nanos) {
+            validations.increment();
+            validateNanos.add(nanos);
+            maxValidateNanos.accumulateAndGet(nanos, Math::max);
+        }
+
+        private JSONObject toJSON() {
+            long count = validations.sum();
+            JSONObject json = new JSONObject();
+            json.put("compile_ms", compileNanos / 1000000.0);
+            json.put("validations", count);
+            json.put("avg_validate_ms", count > 0 ? validateNanos.sum() / count / 1000000.0 : 0.0);
+            json.put("max_validate_ms", maxValidateNanos.get() / 1000000.0);
+            return json;
+        }
+    }
+
     public static void main(String[] args) throws Exception{
         JSONSchemaValidator jsv = new JSONSchemaValidator(null);
         JsonSchemaFactory factory = JsonSchemaFactory.getInstance(SpecVersion.VersionFlag.V7);
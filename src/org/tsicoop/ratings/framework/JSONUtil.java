@@ -1,9 +1,13 @@
 package org.tsicoop.ratings.framework;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
 
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 public class JSONUtil {
 
@@ -26,4 +30,42 @@ public class JSONUtil {
         return jarray;
     }
 
+    /**
+     * Converts a Jackson tree into the json-simple types JSONParser would have produced:
+     * JSONObject, JSONArray, String, Long, Double, Boolean or null.
+     */
+    public static Object toJSONSimple(JsonNode node) {
+        if (node == null || node.isNull() || node.isMissingNode()) {
+            return null;
+        }
+        if (node.isObject()) {
+            JSONObject object = new JSONObject();
+            Iterator<Map.Entry<String, JsonNode>> fields = node.fields();
+            while (fields.hasNext()) {
+                Map.Entry<String, JsonNode> field = fields.next();
+                object.put(field.getKey(), toJSONSimple(field.getValue()));
+            }
+            return object;
+        }
+        if (node.isArray()) {
+            JSONArray array = new JSONArray();
+            for (JsonNode element : node) {
+                array.add(toJSONSimple(element));
+            }
+            return array;
+        }
+        if (node.isTextual()) {
+            return node.textValue();
+        }
+        if (node.isBoolean()) {
+            return node.booleanValue();
+        }
+        if (node.isIntegralNumber()) {
+            return node.canConvertToLong() ? (Object) node.longValue() : (Object) node.doubleValue();
+        }
+        if (node.isNumber()) {
+            return node.doubleValue();
+        }
+        return node.asText();
+    }
 }
@@ -1,11 +1,17 @@
 package org.tsicoop.ratings.framework;
 
 import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.JwtParser;
 import io.jsonwebtoken.Jwts;
 import io.jsonwebtoken.SignatureAlgorithm;
 import io.jsonwebtoken.security.Keys;
+import org.json.simple.JSONObject;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.security.Key;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
@@ -14,6 +20,22 @@ public class JWTUtil {
 
     private static final long EXPIRATION_TIME = 864000000; // 10 days
     private static final Key SECRET_KEY = Keys.secretKeyFor(SignatureAlgorithm.HS256);
+    private static final int DEFAULT_CACHE_SIZE = 10000;
+
+    // JwtParser is immutable and thread-safe, so one instance serves every request
+    private static final JwtParser PARSER = Jwts.parserBuilder().setSigningKey(SECRET_KEY).build();
+
+    // Claims of already verified tokens, keyed by the SHA-256 digest of the token so raw
+    // bearer tokens are not retained, and held no longer than the token's own expiry
+    private static volatile ExpiringCache<ByteBuffer, Claims> verified = new ExpiringCache<>(DEFAULT_CACHE_SIZE);
+
+    protected static void configure() {
+        verified = new ExpiringCache<>(SystemConfig.getIntProperty("framework.jwt.cache_size", DEFAULT_CACHE_SIZE));
+    }
+
+    public static JSONObject getCacheStats() {
+        return verified.getStats();
+    }
 
     public static String generateAppLoginToken(String email, String type, String username, String role, String state, String city) {
         Map<String, String> claims = new HashMap<String,String>();
@@ -42,64 +64,70 @@ public class JWTUtil {
                 .compact();
     }
 
-    public static boolean isTokenValid(String token) {
+    /**
+     * Verifies the token once and returns its claims, or null if the token is invalid
+     * or expired. Repeat calls for a token that is still valid are served from the cache
+     * without re-checking the signature. The returned claims are shared; do not modify them.
+     */
+    public static Claims getClaims(String token) {
+        if (token == null) {
+            return null;
+        }
+        ByteBuffer key = digest(token);
+        Claims claims = verified.get(key);
+        if (claims != null) {
+            return claims;
+        }
         try {
-            Jwts.parserBuilder().setSigningKey(SECRET_KEY).build().parseClaimsJws(token);
-            return true;
+            claims = PARSER.parseClaimsJws(token).getBody();
         } catch (Exception e) {
-            return false;
+            return null;
         }
+        Date expiration = claims.getExpiration();
+        if (expiration != null) {
+            verified.put(key, claims, expiration.getTime());
+        }
+        return claims;
     }
 
-
+    public static boolean isTokenValid(String token) {
+        return getClaims(token) != null;
+    }
 
     public static String getEmailFromToken(String token) {
-        Claims claims = Jwts.parserBuilder()
-                .setSigningKey(SECRET_KEY)
-                .build()
-                .parseClaimsJws(token)
-                .getBody();
-
-        return claims.getSubject();
+        return requireClaims(token).getSubject();
     }
 
     public static String getNameFromToken(String token) {
-        Claims claims = Jwts.parserBuilder()
-                .setSigningKey(SECRET_KEY)
-                .build()
-                .parseClaimsJws(token)
-                .getBody();
-
-        return (String) claims.get("name");
+        return (String) requireClaims(token).get("name");
     }
 
     public static String getUserIdFromToken(String token) {
-        Claims claims = Jwts.parserBuilder()
-                .setSigningKey(SECRET_KEY)
-                .build()
-                .parseClaimsJws(token)
-                .getBody();
-
-        return (String) claims.get("userId");
+        return (String) requireClaims(token).get("userId");
     }
 
     public static String getRoleFromToken(String token) {
-        Claims claims = Jwts.parserBuilder()
-                .setSigningKey(SECRET_KEY)
-                .build()
-                .parseClaimsJws(token)
-                .getBody();
-
-        return (String) claims.get("role");
+        return (String) requireClaims(token).get("role");
     }
 
     public static String getAccountTypeFromToken(String token) {
-        Claims claims = Jwts.parserBuilder()
-                .setSigningKey(SECRET_KEY)
-                .build()
-                .parseClaimsJws(token)
-                .getBody();
+        return (String) requireClaims(token).get("type");
+    }
 
-        return (String) claims.get("type");
+    private static Claims requireClaims(String token) {
+        Claims claims = getClaims(token);
+        if (claims == null) {
+            throw new SecurityException("Invalid or expired token.");
+        }
+        return claims;
+    }
+
+    private static ByteBuffer digest(String token) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            return ByteBuffer.wrap(md.digest(token.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
     }
 }
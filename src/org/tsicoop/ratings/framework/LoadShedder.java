@@ -0,0 +1,67 @@
+package org.tsicoop.ratings.framework;
+
+import org.json.simple.JSONObject;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Turns API requests away with 429 while the service is overloaded, so the requests it
+ * has already taken finish instead of all slowing down together. Overloaded means either
+ * more than framework.shed.max_in_flight API requests are being served, or callers have
+ * recently waited more than framework.shed.max_pool_wait_ms on average for a database
+ * connection. Either threshold is off when 0.
+ */
+public class LoadShedder {
+
+    private static final int DEFAULT_MAX_IN_FLIGHT = 150;
+    private static final int DEFAULT_MAX_POOL_WAIT_MS = 500;
+    public static final int RETRY_AFTER_SECONDS = 1;
+
+    private static final AtomicInteger inFlight = new AtomicInteger();
+    private static final LongAdder shedInFlight = new LongAdder();
+    private static final LongAdder shedPoolWait = new LongAdder();
+
+    private static volatile int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+    private static volatile int maxPoolWaitMs = DEFAULT_MAX_POOL_WAIT_MS;
+
+    public static void configure() {
+        maxInFlight = Math.max(0, SystemConfig.getIntProperty("framework.shed.max_in_flight", DEFAULT_MAX_IN_FLIGHT));
+        maxPoolWaitMs = Math.max(0, SystemConfig.getIntProperty("framework.shed.max_pool_wait_ms", DEFAULT_MAX_POOL_WAIT_MS));
+    }
+
+    /**
+     * Admits a request, or returns false if it should be shed. An admitted request must
+     * be matched by a call to exit().
+     */
+    public static boolean enter() {
+        int count = inFlight.incrementAndGet();
+        if (maxInFlight > 0 && count > maxInFlight) {
+            inFlight.decrementAndGet();
+            shedInFlight.increment();
+            return false;
+        }
+        if (maxPoolWaitMs > 0 && PoolDB.getRecentWaitMillis() > maxPoolWaitMs) {
+            inFlight.decrementAndGet();
+            shedPoolWait.increment();
+            return false;
+        }
+        return true;
+    }
+
+    public static void exit() {
+        inFlight.decrementAndGet();
+    }
+
+    @SuppressWarnings("unchecked")
+    public static JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        stats.put("in_flight", inFlight.get());
+        stats.put("max_in_flight", maxInFlight);
+        stats.put("recent_pool_wait_ms", PoolDB.getRecentWaitMillis());
+        stats.put("max_pool_wait_ms", maxPoolWaitMs);
+        stats.put("shed_in_flight", shedInFlight.sum());
+        stats.put("shed_pool_wait", shedPoolWait.sum());
+        return stats;
+    }
+}
@@ -0,0 +1,366 @@
+package org.tsicoop.ratings.framework;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends email in the background for every part of the service. Messages wait in one
+ * bounded queue and are sent by a fixed number of worker threads, so a burst of
+ * registrations queues up instead of starting a thread per message; when the queue is full
+ * the message is dropped and counted. A failed send is retried with exponential backoff
+ * (2s, 4s, 8s, ... plus jitter) from a scheduler, without holding a worker while it waits.
+ *
+ * Mail to ZeptoMail is sent as one batch request when several queued messages have the
+ * same subject and body; ZeptoMail delivers a batch to each recipient separately.
+ * Other deliveries (e.g. the URL-style API used by AsyncEmailTask) are queued as a
+ * Delivery and retried the same way.
+ */
+public class MailDispatcher {
+
+    private static final int DEFAULT_WORKERS = 2;
+    private static final int DEFAULT_QUEUE_SIZE = 1000;
+    private static final int DEFAULT_MAX_ATTEMPTS = 4;
+    private static final int MAX_BATCH = 50;
+    private static final long BASE_BACKOFF_MS = 2000;
+    private static final long MAX_BACKOFF_MS = 300000;
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(30);
+
+    private static final String FROM_ADDRESS = "noreply@tsicoop.org";
+    private static final String FROM_NAME = "TSI Ratings";
+
+    /**
+     * One attempt at sending something; throws to have it retried.
+     */
+    @FunctionalInterface
+    public interface Delivery {
+        void deliver() throws Exception;
+    }
+
+    /**
+     * Told how a message ended: sent, or failed for good (rejected, out of attempts, or
+     * dropped from a full queue). Called on a dispatcher thread.
+     */
+    public interface Listener {
+        void sent();
+        void failed(String reason);
+    }
+
+    // A queued message: either a ZeptoMail message (delivery == null) or a custom delivery
+    private static class Mail {
+        final String email;
+        final String name;
+        final String subject;
+        final String htmlBody;
+        final Delivery delivery;
+        final String description;
+        final Listener listener;
+        final int maxAttempts; // 0 for framework.mail.max_attempts
+        int attempts = 0;
+
+        Mail(String email, String name, String subject, String htmlBody, Delivery delivery, String description, Listener listener, int maxAttempts) {
+            this.email = email;
+            this.name = name;
+            this.subject = subject;
+            this.htmlBody = htmlBody;
+            this.delivery = delivery;
+            this.description = description;
+            this.listener = listener;
+            this.maxAttempts = maxAttempts;
+        }
+
+        void sent() {
+            if (listener != null) {
+                listener.sent();
+            }
+        }
+
+        void failed(String reason) {
+            if (listener != null) {
+                listener.failed(reason);
+            }
+        }
+    }
+
+    // A ZeptoMail response that will not succeed on retry (e.g. a rejected address)
+    private static class PermanentFailure extends Exception {
+        PermanentFailure(String message) {
+            super(message);
+        }
+    }
+
+    private static final java.net.http.HttpClient http = java.net.http.HttpClient.newBuilder()
+            .connectTimeout(Duration.ofSeconds(10))
+            .build();
+
+    private static final LatencyHistogram sendLatency = new LatencyHistogram();
+    private static final AtomicLong submitted = new AtomicLong();
+    private static final AtomicLong sent = new AtomicLong();
+    private static final AtomicLong batches = new AtomicLong();
+    private static final AtomicLong retried = new AtomicLong();
+    private static final AtomicLong failed = new AtomicLong();
+    private static final AtomicLong dropped = new AtomicLong();
+    private static final AtomicInteger waitingRetry = new AtomicInteger();
+
+    private static volatile BlockingQueue<Mail> queue = new ArrayBlockingQueue<>(DEFAULT_QUEUE_SIZE);
+    private static volatile ExecutorService workers = null;
+    private static volatile ScheduledExecutorService retries = null;
+    private static volatile int workerCount = DEFAULT_WORKERS;
+    private static volatile int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+    private static volatile String apiUrl = null;
+    private static volatile String batchUrl = null;
+    private static volatile String authKey = null;
+
+    public static synchronized void start() {
+        if (workers != null) {
+            return;
+        }
+        workerCount = Math.max(1, SystemConfig.getIntProperty("framework.mail.workers", DEFAULT_WORKERS));
+        maxAttempts = Math.max(1, SystemConfig.getIntProperty("framework.mail.max_attempts", DEFAULT_MAX_ATTEMPTS));
+        queue = new ArrayBlockingQueue<>(Math.max(1, SystemConfig.getIntProperty("framework.mail.queue_size", DEFAULT_QUEUE_SIZE)));
+        apiUrl = System.getenv("ZOHO_API_HOST");
+        authKey = System.getenv("ZOHO_AUTH_KEY");
+        String configuredBatchUrl = SystemConfig.getAppConfig() != null ? SystemConfig.getAppConfig().getProperty("framework.mail.batch_url") : null;
+        if (configuredBatchUrl != null) {
+            batchUrl = configuredBatchUrl;
+        } else if (apiUrl != null && apiUrl.endsWith("/email")) {
+            batchUrl = apiUrl + "/batch"; // ZeptoMail: /v1.1/email -> /v1.1/email/batch
+        }
+        workers = Executors.newFixedThreadPool(workerCount, daemon("tsi-mail-"));
+        for (int i = 0; i < workerCount; i++) {
+            workers.execute(MailDispatcher::work);
+        }
+        retries = Executors.newSingleThreadScheduledExecutor(daemon("tsi-mail-retry-"));
+        System.out.println("Mail dispatcher started with " + workerCount + " workers, queue of " + queue.remainingCapacity());
+    }
+
+    public static synchronized void stop() {
+        if (workers == null) {
+            return;
+        }
+        retries.shutdownNow();
+        workers.shutdownNow();
+        int pending = queue.size() + waitingRetry.get();
+        if (pending > 0) {
+            System.err.println("Mail dispatcher stopped with " + pending + " messages unsent");
+        }
+        workers = null;
+        retries = null;
+    }
+
+    private static ThreadFactory daemon(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Queues an HTML email for sending through ZeptoMail. Returns false if the queue is
+     * full and the message was dropped.
+     */
+    public static boolean send(String email, String name, String subject, String htmlBody) {
+        return send(email, name, subject, htmlBody, null);
+    }
+
+    /**
+     * As send(), telling the listener how the message ended once it has been accepted.
+     */
+    public static boolean send(String email, String name, String subject, String htmlBody, Listener listener) {
+        return submit(new Mail(email, name != null ? name : "", subject, htmlBody, null, email, listener, 0));
+    }
+
+    /**
+     * As send(), but makes a single attempt: a failure is passed to the listener rather
+     * than retried. For callers that retry on their own schedule (EmailOutbox).
+     */
+    public static boolean sendOnce(String email, String name, String subject, String htmlBody, Listener listener) {
+        return submit(new Mail(email, name != null ? name : "", subject, htmlBody, null, email, listener, 1));
+    }
+
+    /**
+     * Queues a custom delivery, retried with backoff like any other message. Returns false
+     * if the queue is full and it was dropped.
+     */
+    public static boolean submit(Delivery delivery, String description) {
+        return submit(new Mail(null, null, null, null, delivery, description, null, 0));
+    }
+
+    private static boolean submit(Mail mail) {
+        if (workers == null) {
+            start();
+        }
+        submitted.incrementAndGet();
+        if (!queue.offer(mail)) {
+            dropped.incrementAndGet();
+            System.err.println("Mail queue full, dropped message to " + mail.description);
+            return false;
+        }
+        return true;
+    }
+
+    private static void work() {
+        List<Mail> taken = new ArrayList<>(MAX_BATCH);
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                taken.clear();
+                taken.add(queue.take());
+                queue.drainTo(taken, MAX_BATCH - 1);
+                dispatch(taken);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException e) {
+                System.err.println("Mail dispatcher error: " + e.getMessage());
+            }
+        }
+    }
+
+    // Groups ZeptoMail messages by content so identical ones go out as one batch
+    private static void dispatch(List<Mail> taken) {
+        Map<String, List<Mail>> groups = new LinkedHashMap<>();
+        for (Mail mail : taken) {
+            if (mail.delivery != null) {
+                attempt(List.of(mail), mail.delivery);
+            } else if (batchUrl == null) {
+                attempt(List.of(mail), () -> sendZepto(List.of(mail)));
+            } else {
+                groups.computeIfAbsent(mail.subject + '\u0000' + mail.htmlBody, k -> new ArrayList<>()).add(mail);
+            }
+        }
+        for (List<Mail> group : groups.values()) {
+            attempt(group, () -> sendZepto(group));
+        }
+    }
+
+    private static void attempt(List<Mail> mails, Delivery delivery) {
+        long start = System.nanoTime();
+        try {
+            delivery.deliver();
+            sent.addAndGet(mails.size());
+            for (Mail mail : mails) {
+                mail.sent();
+            }
+        } catch (PermanentFailure e) {
+            failed.addAndGet(mails.size());
+            System.err.println("Mail to " + describe(mails) + " rejected: " + e.getMessage());
+            for (Mail mail : mails) {
+                mail.failed(e.getMessage());
+            }
+        } catch (Exception e) {
+            for (Mail mail : mails) {
+                retry(mail, e);
+            }
+        } finally {
+            sendLatency.record(System.nanoTime() - start);
+        }
+    }
+
+    private static void retry(Mail mail, Exception cause) {
+        mail.attempts++;
+        ScheduledExecutorService scheduler = retries;
+        if (mail.attempts >= (mail.maxAttempts > 0 ? mail.maxAttempts : maxAttempts) || scheduler == null) {
+            failed.incrementAndGet();
+            System.err.println("Giving up on mail to " + mail.description + " after " + mail.attempts + " attempts: " + cause.getMessage());
+            mail.failed(cause.getMessage());
+            return;
+        }
+        long backoff = Math.min(MAX_BACKOFF_MS, BASE_BACKOFF_MS << (mail.attempts - 1));
+        backoff += ThreadLocalRandom.current().nextLong(backoff / 4 + 1);
+        retried.incrementAndGet();
+        waitingRetry.incrementAndGet();
+        scheduler.schedule(() -> {
+            waitingRetry.decrementAndGet();
+            if (!queue.offer(mail)) {
+                dropped.incrementAndGet();
+                System.err.println("Mail queue full, dropped retry of message to " + mail.description);
+                mail.failed("Mail queue full");
+            }
+        }, backoff, TimeUnit.MILLISECONDS);
+    }
+
+    private static void sendZepto(List<Mail> group) throws Exception {
+        if (apiUrl == null || authKey == null) {
+            throw new PermanentFailure("ZOHO_API_HOST or ZOHO_AUTH_KEY is not set");
+        }
+        Mail first = group.get(0);
+        JSONObject payload = new JSONObject();
+        JSONObject from = new JSONObject();
+        from.put("address", FROM_ADDRESS);
+        from.put("name", FROM_NAME);
+        payload.put("from", from);
+        JSONArray to = new JSONArray();
+        for (Mail mail : group) {
+            JSONObject address = new JSONObject();
+            address.put("address", mail.email);
+            address.put("name", mail.name);
+            JSONObject recipient = new JSONObject();
+            recipient.put("email_address", address);
+            to.add(recipient);
+        }
+        payload.put("to", to);
+        payload.put("subject", first.subject);
+        payload.put("htmlbody", first.htmlBody);
+
+        boolean batch = group.size() > 1;
+        HttpRequest request = HttpRequest.newBuilder()
+                .POST(HttpRequest.BodyPublishers.ofString(payload.toJSONString()))
+                .uri(URI.create(batch ? batchUrl : apiUrl))
+                .timeout(REQUEST_TIMEOUT)
+                .setHeader("authorization", authKey)
+                .setHeader("Content-Type", "application/json")
+                .build();
+        HttpResponse<String> response = http.send(request, HttpResponse.BodyHandlers.ofString());
+        int status = response.statusCode();
+        if (status >= 200 && status < 300) {
+            if (batch) {
+                batches.incrementAndGet();
+            }
+            return;
+        }
+        // Throttling and server errors are worth retrying; other client errors are not
+        if (status == 429 || status >= 500) {
+            throw new Exception("HTTP " + status + ": " + response.body());
+        }
+        throw new PermanentFailure("HTTP " + status + ": " + response.body());
+    }
+
+    private static String describe(List<Mail> mails) {
+        return mails.size() == 1 ? mails.get(0).description : mails.size() + " recipients";
+    }
+
+    public static JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        stats.put("queue_depth", queue.size());
+        stats.put("queue_capacity", queue.size() + queue.remainingCapacity());
+        stats.put("waiting_retry", waitingRetry.get());
+        stats.put("workers", workerCount);
+        stats.put("submitted", submitted.get());
+        stats.put("sent", sent.get());
+        stats.put("batches", batches.get());
+        stats.put("retried", retried.get());
+        stats.put("failed", failed.get());
+        stats.put("dropped", dropped.get());
+        stats.put("send", sendLatency.toJSON());
+        return stats;
+    }
+}
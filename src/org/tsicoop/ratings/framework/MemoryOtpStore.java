@@ -0,0 +1,220 @@
+package org.tsicoop.ratings.framework;
+
+import org.json.simple.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The in-process OtpStore. Entries are spread over STRIPES maps by the hash of the email,
+ * each guarded by its own lock, so concurrent logins for different emails rarely contend
+ * and the check-and-count of an attempt is atomic for the same email.
+ *
+ * Expired entries are removed by a timing wheel rather than by scanning: slot i of the
+ * wheel lists the emails whose entry expires in tick i (mod the wheel size), and a
+ * background thread empties one slot per tick. The wheel spans the whole TTL, so every
+ * entry is in the right slot on the first turn. An entry replaced before it expires is
+ * listed again under its new expiry; the stale listing finds it not yet due and leaves it.
+ * Expiry is checked again on every verify, so the wheel only bounds memory.
+ */
+public class MemoryOtpStore implements OtpStore {
+
+    private static final int STRIPES = 32;
+    private static final long TICK_MS = 1000;
+    private static final int WHEEL_SLOTS = (int) (TTL_MS / TICK_MS) + 2;
+
+    private static class Entry {
+        final byte[] otp;
+        final long issuedAt;
+        final long expiresAt;
+        int attempts = 0;
+
+        Entry(byte[] otp, long issuedAt, long expiresAt) {
+            this.otp = otp;
+            this.issuedAt = issuedAt;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static volatile MemoryOtpStore instance = null;
+
+    private final Map<String, Entry>[] stripes;
+    private final List<String>[] wheel;
+    private long wheelTick; // Last tick emptied; guarded by wheel
+
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicLong issued = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+    private final AtomicLong valid = new AtomicLong();
+    private final AtomicLong invalid = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    private final AtomicLong locked = new AtomicLong();
+    private final AtomicLong notRequested = new AtomicLong();
+    private final AtomicLong reaped = new AtomicLong();
+
+    public static synchronized MemoryOtpStore getInstance() {
+        if (instance == null) {
+            instance = new MemoryOtpStore();
+            ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "tsi-otp-expiry");
+                thread.setDaemon(true);
+                return thread;
+            });
+            MemoryOtpStore store = instance;
+            ticker.scheduleAtFixedRate(() -> store.advance(System.currentTimeMillis()), TICK_MS, TICK_MS, TimeUnit.MILLISECONDS);
+        }
+        return instance;
+    }
+
+    @SuppressWarnings("unchecked")
+    private MemoryOtpStore() {
+        stripes = new Map[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new HashMap<>();
+        }
+        wheel = new List[WHEEL_SLOTS];
+        for (int i = 0; i < WHEEL_SLOTS; i++) {
+            wheel[i] = new ArrayList<>();
+        }
+        wheelTick = System.currentTimeMillis() / TICK_MS;
+    }
+
+    private Map<String, Entry> stripeOf(String email) {
+        int h = email.hashCode();
+        return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+    }
+
+    @Override
+    public Timestamp issue(PoolDB pool, String email, String otp) {
+        long now = System.currentTimeMillis();
+        Entry entry = new Entry(otp.getBytes(StandardCharsets.UTF_8), now, now + TTL_MS);
+        Map<String, Entry> stripe = stripeOf(email);
+        synchronized (stripe) {
+            Entry current = stripe.get(email);
+            if (current != null && current.expiresAt > now && now - current.issuedAt < COOLDOWN_MS) {
+                throttled.incrementAndGet();
+                return null;
+            }
+            if (stripe.put(email, entry) == null) {
+                size.incrementAndGet();
+            }
+        }
+        schedule(email, entry.expiresAt);
+        issued.incrementAndGet();
+        return new Timestamp(entry.expiresAt);
+    }
+
+    @Override
+    public void revoke(PoolDB pool, String email, String otp) {
+        byte[] code = otp.getBytes(StandardCharsets.UTF_8);
+        Map<String, Entry> stripe = stripeOf(email);
+        synchronized (stripe) {
+            Entry current = stripe.get(email);
+            if (current != null && MessageDigest.isEqual(current.otp, code)) {
+                stripe.remove(email);
+                size.decrementAndGet();
+            }
+        }
+    }
+
+    @Override
+    public Result verify(PoolDB pool, String email, String otp) {
+        byte[] code = otp.getBytes(StandardCharsets.UTF_8);
+        long now = System.currentTimeMillis();
+        Result result;
+        Map<String, Entry> stripe = stripeOf(email);
+        synchronized (stripe) {
+            Entry entry = stripe.get(email);
+            if (entry == null) {
+                result = Result.NOT_REQUESTED;
+            } else if (entry.attempts >= MAX_ATTEMPTS) {
+                result = Result.LOCKED; // Kept until it expires, so the cooldown still applies
+            } else if (!MessageDigest.isEqual(entry.otp, code)) {
+                entry.attempts++;
+                result = Result.INVALID;
+            } else {
+                stripe.remove(email);
+                size.decrementAndGet();
+                result = entry.expiresAt <= now ? Result.EXPIRED : Result.VALID;
+            }
+        }
+        count(result);
+        return result;
+    }
+
+    private void count(Result result) {
+        switch (result) {
+            case VALID: valid.incrementAndGet(); break;
+            case INVALID: invalid.incrementAndGet(); break;
+            case EXPIRED: expired.incrementAndGet(); break;
+            case LOCKED: locked.incrementAndGet(); break;
+            default: notRequested.incrementAndGet(); break;
+        }
+    }
+
+    private void schedule(String email, long expiresAt) {
+        long tick = (expiresAt + TICK_MS - 1) / TICK_MS;
+        synchronized (wheel) {
+            wheel[(int) (tick % WHEEL_SLOTS)].add(email);
+        }
+    }
+
+    // Empties the slots of every tick up to now, removing the entries that are due
+    void advance(long now) {
+        long nowTick = now / TICK_MS;
+        while (true) {
+            List<String> due;
+            synchronized (wheel) {
+                if (wheelTick >= nowTick) {
+                    return;
+                }
+                // After a stall, one turn of the wheel covers every slot
+                wheelTick = Math.max(wheelTick + 1, nowTick - WHEEL_SLOTS + 1);
+                int slot = (int) (wheelTick % WHEEL_SLOTS);
+                due = wheel[slot];
+                if (due.isEmpty()) {
+                    continue;
+                }
+                wheel[slot] = new ArrayList<>();
+            }
+            for (String email : due) {
+                Map<String, Entry> stripe = stripeOf(email);
+                synchronized (stripe) {
+                    Entry entry = stripe.get(email);
+                    if (entry != null && entry.expiresAt <= now) {
+                        stripe.remove(email);
+                        size.decrementAndGet();
+                        reaped.incrementAndGet();
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        stats.put("store", "memory");
+        stats.put("size", size.get());
+        stats.put("issued", issued.get());
+        stats.put("throttled", throttled.get());
+        stats.put("valid", valid.get());
+        stats.put("invalid", invalid.get());
+        stats.put("expired", expired.get());
+        stats.put("locked", locked.get());
+        stats.put("not_requested", notRequested.get());
+        stats.put("reaped", reaped.get());
+        return stats;
+    }
+}
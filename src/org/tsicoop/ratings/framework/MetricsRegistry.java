@@ -0,0 +1,33 @@
+package org.tsicoop.ratings.framework;
+
+import org.json.simple.JSONObject;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Supplier;
+
+/**
+ * Named metric sections (schemas, functions, pools, caches...) collected on demand
+ * for the metrics endpoint. Components register a snapshot supplier once at startup.
+ */
+public class MetricsRegistry {
+
+    private static final Map<String, Supplier<JSONObject>> sections = new ConcurrentSkipListMap<>();
+
+    public static void register(String name, Supplier<JSONObject> section) {
+        sections.put(name, section);
+    }
+
+    public static JSONObject snapshot() {
+        JSONObject metrics = new JSONObject();
+        for (Map.Entry<String, Supplier<JSONObject>> entry : sections.entrySet()) {
+            try {
+                metrics.put(entry.getKey(), entry.getValue().get());
+            } catch (Exception e) {
+                metrics.put(entry.getKey(), null);
+                System.err.println("Error collecting metrics section " + entry.getKey() + ": " + e.getMessage());
+            }
+        }
+        return metrics;
+    }
+}
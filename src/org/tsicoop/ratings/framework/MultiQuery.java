@@ -0,0 +1,65 @@
+package org.tsicoop.ratings.framework;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs several independent SELECTs as one multi-statement prepared statement, which the
+ * PostgreSQL driver sends in a single round trip. Each query's result set is handed to
+ * its handler in order as it is read, so callers assemble their output part by part.
+ *
+ *     new MultiQuery()
+ *         .add("SELECT ... WHERE \"auditorId\" = ?", rs -> ..., auditorId)
+ *         .add("SELECT ... LIMIT 5", rs -> ...)
+ *         .execute(conn);
+ *
+ * Queries must not contain semicolons of their own.
+ */
+public class MultiQuery {
+
+    @FunctionalInterface
+    public interface ResultHandler {
+        void handle(ResultSet rs) throws SQLException;
+    }
+
+    private final StringBuilder sql = new StringBuilder();
+    private final List<Object> params = new ArrayList<>();
+    private final List<ResultHandler> handlers = new ArrayList<>();
+
+    public MultiQuery add(String query, ResultHandler handler, Object... queryParams) {
+        if (sql.length() > 0) {
+            sql.append(";\n");
+        }
+        sql.append(query);
+        for (Object param : queryParams) {
+            params.add(param);
+        }
+        handlers.add(handler);
+        return this;
+    }
+
+    public void execute(Connection conn) throws SQLException {
+        try (PreparedStatement pstmt = conn.prepareStatement(sql.toString())) {
+            for (int i = 0; i < params.size(); i++) {
+                pstmt.setObject(i + 1, params.get(i));
+            }
+            boolean isResultSet = pstmt.execute();
+            for (ResultHandler handler : handlers) {
+                while (!isResultSet && pstmt.getUpdateCount() != -1) {
+                    isResultSet = pstmt.getMoreResults();
+                }
+                if (!isResultSet) {
+                    throw new SQLException("Query returned no result set");
+                }
+                try (ResultSet rs = pstmt.getResultSet()) {
+                    handler.handle(rs);
+                }
+                isResultSet = pstmt.getMoreResults();
+            }
+        }
+    }
+}
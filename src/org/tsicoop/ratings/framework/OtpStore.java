@@ -0,0 +1,66 @@
+package org.tsicoop.ratings.framework;
+
+import org.json.simple.JSONObject;
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+
+/**
+ * Where login OTPs live between request_otp and login_otp. Every store enforces the same
+ * rules: an OTP is valid for TTL_MS, another cannot be issued for the same email within
+ * COOLDOWN_MS, and an OTP is burned after MAX_ATTEMPTS wrong codes. Emails are compared
+ * as given.
+ *
+ * The default store (framework.otp.store=memory) keeps OTPs in process, so login costs no
+ * database writes; it assumes request_otp and login_otp reach the same instance. With
+ * framework.otp.store=db the OTP is kept on the users row instead, for deployments that
+ * balance requests across instances without affinity.
+ */
+public interface OtpStore {
+
+    long TTL_MS = 5 * 60 * 1000;
+    long COOLDOWN_MS = 60 * 1000;
+    int MAX_ATTEMPTS = 5;
+
+    enum Result {
+        VALID,         // Matched; the OTP is now used up
+        INVALID,       // Did not match
+        EXPIRED,
+        NOT_REQUESTED, // No OTP outstanding (never requested, already used or expired and gone)
+        LOCKED         // Too many wrong codes; a new OTP must be requested
+    }
+
+    /**
+     * Issues an OTP for the email, replacing any outstanding one. Returns when it expires,
+     * or null if one was issued too recently. Database-backed stores work on the pool's
+     * connection, within its current transaction if there is one.
+     */
+    Timestamp issue(PoolDB pool, String email, String otp) throws SQLException;
+
+    /**
+     * Withdraws an OTP issued by issue() whose delivery could not be arranged, so the
+     * cooldown does not hold up the next request. Does nothing if another has replaced it.
+     */
+    void revoke(PoolDB pool, String email, String otp) throws SQLException;
+
+    /**
+     * Checks a code entered for the email and counts the attempt.
+     */
+    Result verify(PoolDB pool, String email, String otp) throws SQLException;
+
+    JSONObject getStats();
+
+    /**
+     * The store named by framework.otp.store ("memory", the default, or "db").
+     */
+    static OtpStore fromConfig() {
+        String kind = SystemConfig.getAppConfig() != null ? SystemConfig.getAppConfig().getProperty("framework.otp.store") : null;
+        if (kind != null && kind.trim().equalsIgnoreCase("db")) {
+            return DbOtpStore.getInstance();
+        }
+        if (kind != null && !kind.isBlank() && !kind.trim().equalsIgnoreCase("memory")) {
+            System.err.println("Unknown framework.otp.store '" + kind + "', using memory");
+        }
+        return MemoryOtpStore.getInstance();
+    }
+}
@@ -1,12 +1,23 @@
 package org.tsicoop.ratings.framework;
 
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
 import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
+import org.json.simple.JSONAware;
 import org.json.simple.JSONObject;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.ResultSet;
 import java.time.Instant;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.Map;
 
 public class OutputProcessor {
 
@@ -14,6 +25,20 @@ public class OutputProcessor {
 
      private static final DateTimeFormatter ISO_INSTANT_FORMATTER = DateTimeFormatter.ISO_INSTANT.withZone(ZoneOffset.UTC);
 
+    // Generators take their output buffers from Jackson's per-thread BufferRecycler, so writing a
+    // response allocates a fixed-size buffer instead of a String the size of the body
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    @FunctionalInterface
+    public interface JsonBody {
+        void write(JsonGenerator gen) throws Exception;
+    }
+
+    @FunctionalInterface
+    public interface RowWriter {
+        void write(JsonGenerator gen, ResultSet rs) throws Exception;
+    }
+
     public static void errorResponse(HttpServletResponse res,int status, String error, String message, String path) {
         JSONObject errorNode = new JSONObject();
         ServletOutputStream out = null;
@@ -24,7 +49,7 @@ public class OutputProcessor {
         errorNode.put("path", path);
         try {
             out = res.getOutputStream();
-            out.print(errorNode.toJSONString());
+            out.write(errorNode.toJSONString().getBytes(StandardCharsets.UTF_8));
         } catch (Exception e) {
             e.printStackTrace();
         }finally {
@@ -47,8 +72,12 @@ public class OutputProcessor {
             if (data != null) {
                 if (data instanceof byte[]) {
                     out.write((byte[]) data);
+                } else if (data instanceof Map || data instanceof List) {
+                    try (JsonGenerator gen = JSON_FACTORY.createGenerator(out, JsonEncoding.UTF8)) {
+                        writeValue(gen, data);
+                    }
                 } else {
-                    out.print(String.valueOf(data));
+                    out.write(String.valueOf(data).getBytes(StandardCharsets.UTF_8));
                 }
             }
         } catch (Exception e) {
@@ -62,6 +91,131 @@ public class OutputProcessor {
     }
     }
 
+    /**
+     * Tags the response with its ETag and Cache-Control. If the request's If-None-Match
+     * already names that ETag, the client's copy is current: 304 Not Modified is sent with
+     * no body and true is returned.
+     */
+    public static boolean notModified(HttpServletRequest req, HttpServletResponse res, String etag, String cacheControl) {
+        res.setHeader("ETag", etag);
+        if (cacheControl != null) {
+            res.setHeader("Cache-Control", cacheControl);
+        }
+        if (matchesETag(req.getHeader("If-None-Match"), etag)) {
+            res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * A strong ETag for the given content: a quoted, truncated SHA-256 digest.
+     */
+    public static String etagOf(byte[] content) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+            StringBuilder etag = new StringBuilder("\"");
+            for (int i = 0; i < 16; i++) {
+                etag.append(String.format("%02x", digest[i]));
+            }
+            return etag.append('"').toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // SHA-256 is always available
+        }
+    }
+
+    // If-None-Match holds "*" or a comma-separated list of (possibly weak) entity tags
+    private static boolean matchesETag(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals("*") || candidate.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Writes the response body straight to the output stream as it is generated, so large
+     * results (e.g. rows read from a ResultSet) are never held in memory as a whole.
+     * The status is committed before the body is written.
+     */
+    public static void stream(HttpServletResponse res, int status, JsonBody body) throws Exception {
+        res.setContentType(MEDIA_TYPE_JSON);
+        res.setCharacterEncoding("UTF-8");
+        res.setStatus(status);
+        try (JsonGenerator gen = JSON_FACTORY.createGenerator(res.getOutputStream(), JsonEncoding.UTF8)) {
+            body.write(gen);
+        }
+    }
+
+    /**
+     * Writes the rows of rs as an array field, one object per row, reading each row only as
+     * it is written. Stops after maxRows rows and leaves rs on the last row written, so the
+     * caller can still read its keys and then call rs.next() to see whether more rows follow.
+     * Returns the number of rows written.
+     */
+    public static int writeRows(JsonGenerator gen, String field, ResultSet rs, int maxRows, RowWriter row) throws Exception {
+        int rows = 0;
+        gen.writeArrayFieldStart(field);
+        while (rows < maxRows && rs.next()) {
+            gen.writeStartObject();
+            row.write(gen, rs);
+            gen.writeEndObject();
+            rows++;
+        }
+        gen.writeEndArray();
+        return rows;
+    }
+
+    /**
+     * Writes json-simple values (JSONObject/JSONArray or any Map/List) field by field,
+     * producing the same output as toJSONString().
+     */
+    public static void writeValue(JsonGenerator gen, Object value) throws Exception {
+        if (value == null) {
+            gen.writeNull();
+        } else if (value instanceof String) {
+            gen.writeString((String) value);
+        } else if (value instanceof Map) {
+            gen.writeStartObject();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                gen.writeFieldName(String.valueOf(entry.getKey()));
+                writeValue(gen, entry.getValue());
+            }
+            gen.writeEndObject();
+        } else if (value instanceof List) {
+            gen.writeStartArray();
+            for (Object item : (List<?>) value) {
+                writeValue(gen, item);
+            }
+            gen.writeEndArray();
+        } else if (value instanceof Boolean) {
+            gen.writeBoolean((Boolean) value);
+        } else if (value instanceof Double || value instanceof Float) {
+            double d = ((Number) value).doubleValue();
+            if (Double.isNaN(d) || Double.isInfinite(d)) {
+                gen.writeNull(); // json-simple writes null for these as well
+            } else if (value instanceof Float) {
+                gen.writeNumber((Float) value);
+            } else {
+                gen.writeNumber(d);
+            }
+        } else if (value instanceof Number) {
+            gen.writeNumber(value.toString());
+        } else if (value instanceof JSONAware) {
+            gen.writeRawValue(((JSONAware) value).toJSONString());
+        } else {
+            gen.writeString(value.toString());
+        }
+    }
+
     public static void sendError(HttpServletResponse res, int status, String message) {
         ServletOutputStream out = null;
         res.setContentType(MEDIA_TYPE_JSON);
@@ -72,7 +226,7 @@ public class OutputProcessor {
         resp.put("error", message);
         try {
             out = res.getOutputStream();
-            out.print(String.valueOf(out));
+            out.write(resp.toJSONString().getBytes(StandardCharsets.UTF_8));
         } catch (Exception e) {
         } finally {
             if (out != null) {
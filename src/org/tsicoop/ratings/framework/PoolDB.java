@@ -2,41 +2,111 @@ package org.tsicoop.ratings.framework;
 
 import com.zaxxer.hikari.HikariConfig;
 import com.zaxxer.hikari.HikariDataSource;
+import org.json.simple.JSONObject;
 
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.Properties;
 
 
+/**
+ * One unit of work against the shared connection pool. No connection is borrowed until
+ * getConnection() is first called, and the same connection is returned for the rest of
+ * the unit of work until close() hands it back, so a PoolDB is used with try-with-resources:
+ *
+ *     try (PoolDB pool = new PoolDB()) {
+ *         Connection conn = pool.getConnection();
+ *         ...
+ *     }
+ *
+ * Code that closes the connection itself (directly or via cleanup) still works; the next
+ * getConnection() borrows a fresh one. transaction() runs work atomically and nests by
+ * way of savepoints. Read-only work that tolerates replication lag uses forReads(), or
+ * runs inside an ApiFunction declared readOnly().
+ *
+ * unitOfWork() binds a PoolDB to the current thread until it is closed. Every PoolDB
+ * created on the thread meanwhile, such as one in a helper method, joins it: it uses the
+ * same connection and takes part in its transaction, and its close() and cleanup() leave
+ * that connection open. A request therefore never holds more than one pooled connection,
+ * however its helpers are written.
+ */
 @SuppressWarnings("unchecked")
-public class PoolDB extends DB{
+public class PoolDB extends DB implements AutoCloseable {
 
-    // HikariCP DataSource instance
-    private static HikariDataSource basicDataSource = null;
+    public interface Work<T> {
+        T execute(Connection conn) throws SQLException;
+    }
+
+    // HikariCP DataSource instances, created once by init()
+    private static volatile HikariDataSource basicDataSource = null;
+    private static volatile HikariDataSource replicaDataSource = null;
+    private static final PoolMetrics metrics = new PoolMetrics();
+    private static final PoolMetrics replicaMetrics = new PoolMetrics();
+
+    // Set while a read-only ApiFunction runs on this thread
+    private static final ThreadLocal<Boolean> readOnlyScope = ThreadLocal.withInitial(() -> false);
 
-    // Static block to initialize the HikariCP DataSource once when the class is loaded
-    private void initBasicDataSource() {
+    // The unit of work bound to this thread by unitOfWork(), if any
+    private static final ThreadLocal<PoolDB> boundUnit = new ThreadLocal<>();
+
+    private final boolean autocommit;
+    private final boolean forReads;
+    private final PoolDB outer; // The bound unit of work this one joined, or null
+    private boolean bound = false;
+    private int transactionDepth = 0;
+
+    /**
+     * Creates the primary pool and, when framework.db.replica.host is set, the read
+     * replica pool. Called once from InterceptingFilter.init; later calls are no-ops.
+     * If the database is unreachable at startup, the first getConnection() retries.
+     */
+    public static synchronized void init(Properties appConfig) {
+        if (basicDataSource == null) {
+            basicDataSource = createDataSource("tsi-primary", appConfig.getProperty("framework.db.host"), "framework.db.pool.", metrics);
+            System.out.println("HikariCP DataSource initialized for PostgreSQL.");
+        }
+        String replicaHost = appConfig.getProperty("framework.db.replica.host");
+        if (replicaDataSource == null && replicaHost != null) {
+            try {
+                replicaDataSource = createDataSource("tsi-replica", replicaHost, "framework.db.replica.pool.", replicaMetrics);
+                System.out.println("HikariCP DataSource initialized for PostgreSQL read replica.");
+            } catch (RuntimeException e) {
+                // Reads fall back to the primary until the replica can be reached
+                System.err.println("Read replica unavailable, reads will use the primary: " + e.getMessage());
+            }
+        }
+        if (replicaHost != null) {
+            ReplicaMonitor.start();
+        }
+    }
+
+    private static HikariDataSource createDataSource(String poolName, String host, String prefix, PoolMetrics poolMetrics) {
+        Properties appConfig = SystemConfig.getAppConfig();
 
         // Create a HikariConfig object to hold the pool's configuration
         HikariConfig config = new HikariConfig();
+        config.setPoolName(poolName);
 
         // --- Database Connection Properties (for PostgreSQL) ---
-        // Replace 'localhost:5432' with your PostgreSQL host and port if different.
-        // Replace 'your_database_name', 'your_username', and 'your_password' with your actual credentials.
-        config.setJdbcUrl(SystemConfig.getAppConfig().getProperty("framework.db.host")+"/"+ SystemConfig.getAppConfig().getProperty("framework.db.name"));
-        config.setUsername(SystemConfig.getAppConfig().getProperty("framework.db.user"));
-        config.setPassword(SystemConfig.getAppConfig().getProperty("framework.db.password"));
+        config.setJdbcUrl(host + "/" + appConfig.getProperty("framework.db.name"));
+        config.setUsername(appConfig.getProperty("framework.db.user"));
+        config.setPassword(appConfig.getProperty("framework.db.password"));
 
-        // --- HikariCP Specific Pool Properties (Highly Recommended for Performance) ---
+        // --- HikariCP Specific Pool Properties ---
+        // Replica pools inherit any setting they do not override from the primary pool settings
         // Maximum number of connections in the pool. Adjust based on your application's concurrency needs.
-        config.setMaximumPoolSize(10);
+        config.setMaximumPoolSize(poolSetting(prefix, "max_size", 10));
         // Minimum number of idle connections to maintain in the pool.
-        config.setMinimumIdle(5);
+        config.setMinimumIdle(Math.min(poolSetting(prefix, "min_idle", 5), config.getMaximumPoolSize()));
         // Maximum waiting time for a connection from the pool. (30 seconds)
-        config.setConnectionTimeout(30000);
+        config.setConnectionTimeout(poolSetting(prefix, "connection_timeout_ms", 30000));
         // Maximum amount of time a connection can sit idle in the pool before being evicted. (10 minutes)
-        config.setIdleTimeout(600000); // milliseconds
+        config.setIdleTimeout(poolSetting(prefix, "idle_timeout_ms", 600000));
         // Maximum lifetime of a connection in the pool. (30 minutes)
-        config.setMaxLifetime(1800000); // milliseconds
+        config.setMaxLifetime(poolSetting(prefix, "max_lifetime_ms", 1800000));
+        // Log connections held longer than this; 0 disables leak detection
+        config.setLeakDetectionThreshold(poolSetting(prefix, "leak_detection_ms", 0));
 
         // --- DataSource Properties (passed directly to the JDBC driver or database) ---
         // Recommended for PostgreSQL to improve performance by caching prepared statements
@@ -46,49 +116,255 @@ public class PoolDB extends DB{
         // Max length of SQL in the PreparedStatement cache
         config.addDataSourceProperty("prepStmtCacheSqlLimit", "2048");
 
+        config.setMetricsTrackerFactory(poolMetrics);
+
         // Create the HikariDataSource using the configured properties
-        basicDataSource = new HikariDataSource(config);
-        System.out.println("HikariCP DataSource initialized for PostgreSQL.");
+        return new HikariDataSource(config);
+    }
+
+    private static int poolSetting(String prefix, String name, int defaultValue) {
+        int primary = SystemConfig.getIntProperty("framework.db.pool." + name, defaultValue);
+        return SystemConfig.getIntProperty(prefix + name, primary);
     }
 
+    public static synchronized void shutdown() {
+        ReplicaMonitor.stop();
+        if (replicaDataSource != null) {
+            replicaDataSource.close();
+            replicaDataSource = null;
+        }
+        if (basicDataSource != null) {
+            basicDataSource.close();
+            basicDataSource = null;
+        }
+    }
 
     public PoolDB() throws SQLException{
-        super();
-        con = createConnection(true);
+        this(true);
     }
 
     public PoolDB(boolean autocommit) throws SQLException{
+        this(autocommit, false);
+    }
+
+    private PoolDB(boolean autocommit, boolean forReads) {
         super();
-        con = createConnection(autocommit);
+        this.autocommit = autocommit;
+        this.forReads = forReads || readOnlyScope.get();
+        this.outer = boundUnit.get();
     }
 
-    public Connection getConnection(){
+    /**
+     * A unit of work bound to the current thread until close(), which every PoolDB created
+     * on the thread in the meantime joins. If one is already bound, the new one joins it too.
+     * Always used with try-with-resources:
+     *
+     *     try (PoolDB pool = PoolDB.unitOfWork()) {
+     *         pool.transaction(conn -> ...);   // Helpers using new PoolDB() join this transaction
+     *     }
+     */
+    public static PoolDB unitOfWork() {
+        PoolDB pool = new PoolDB(true, false);
+        if (pool.outer == null) {
+            pool.bound = true;
+            boundUnit.set(pool);
+        }
+        return pool;
+    }
+
+    /**
+     * Read-only unit of work, served by the read replica while it is healthy and by
+     * the primary otherwise. Results may lag the primary by up to the configured maximum.
+     */
+    public static PoolDB forReads() {
+        return new PoolDB(true, true);
+    }
+
+    /**
+     * Marks the current thread as serving a read-only request, so every PoolDB it creates
+     * until endReadOnlyScope() behaves as forReads(). Returns the previous state to restore.
+     */
+    public static boolean beginReadOnlyScope() {
+        boolean previous = readOnlyScope.get();
+        readOnlyScope.set(true);
+        return previous;
+    }
+
+    public static void endReadOnlyScope(boolean previous) {
+        if (previous) {
+            readOnlyScope.set(true);
+        } else {
+            readOnlyScope.remove();
+        }
+    }
+
+    /**
+     * Connection for this unit of work, borrowed from the pool on first use.
+     */
+    public Connection getConnection() throws SQLException {
+        if (outer != null) {
+            return outer.getConnection();
+        }
+        if (con == null || con.isClosed()) {
+            con = createConnection(autocommit);
+            transactionDepth = 0;
+        }
         return con;
     }
 
     public Connection createConnection(boolean autocommit) throws SQLException {
+        if (basicDataSource == null) {
+            init(SystemConfig.getAppConfig());
+        }
+        long start = System.nanoTime();
         Connection connection = null;
-        /*try {
-            Class.forName("org.postgresql.Driver");
-            connection = DriverManager.getConnection(   SystemConfig.getAppConfig().getProperty("framework.db.host")+"/"+ SystemConfig.getAppConfig().getProperty("framework.db.name"),
-                                                            SystemConfig.getAppConfig().getProperty("framework.db.user"),
-                                                            SystemConfig.getAppConfig().getProperty("framework.db.password"));
-            if(!autocommit)
-                connection.setAutoCommit(false);
-        } catch (ClassNotFoundException e) {
-            e.printStackTrace();
-        }
-        return connection;*/
-        try {
-            Class.forName("org.postgresql.Driver");
-            if (basicDataSource == null) {
-                initBasicDataSource();
+        PoolMetrics poolMetrics = metrics;
+        HikariDataSource replica = replicaDataSource;
+        if (forReads && replica != null && ReplicaMonitor.isHealthy()) {
+            try {
+                connection = replica.getConnection();
+                poolMetrics = replicaMetrics;
+            } catch (SQLException e) {
+                ReplicaMonitor.markUnhealthy(e);
             }
+        }
+        if (forReads) {
+            ReplicaMonitor.recordRead(connection != null);
+        }
+        if (connection == null) {
             connection = basicDataSource.getConnection();
+        }
+        try {
             connection.setAutoCommit(autocommit);
-        }catch (ClassNotFoundException e) {
-            e.printStackTrace();
+            connection.setReadOnly(forReads);
+        } catch (SQLException e) {
+            close(connection);
+            throw e;
+        }
+        poolMetrics.recordBorrowNanos(System.nanoTime() - start);
+        return connection;
+    }
+
+    // Used by ReplicaMonitor to measure lag; retries pool creation if the replica was down at startup
+    static Connection borrowReplica() throws SQLException {
+        if (replicaDataSource == null) {
+            init(SystemConfig.getAppConfig());
+            if (replicaDataSource == null) {
+                throw new SQLException("Read replica pool is not available");
+            }
+        }
+        return replicaDataSource.getConnection();
+    }
+
+    /**
+     * Runs work in a transaction and returns its result. The outermost call commits or
+     * rolls back; a call nested inside another transaction() on the same PoolDB runs
+     * under a savepoint, so its failure only undoes its own changes before the exception
+     * propagates to the caller.
+     */
+    public <T> T transaction(Work<T> work) throws SQLException {
+        if (outer != null) {
+            return outer.transaction(work);
+        }
+        Connection conn = getConnection();
+        if (transactionDepth == 0) {
+            boolean previous = conn.getAutoCommit();
+            conn.setAutoCommit(false);
+            transactionDepth++;
+            try {
+                T result = work.execute(conn);
+                conn.commit();
+                return result;
+            } catch (SQLException | RuntimeException e) {
+                rollback(conn);
+                throw e;
+            } finally {
+                transactionDepth--;
+                if (!conn.isClosed()) {
+                    conn.setAutoCommit(previous);
+                }
+            }
+        }
+        Savepoint savepoint = conn.setSavepoint();
+        transactionDepth++;
+        try {
+            T result = work.execute(conn);
+            conn.releaseSavepoint(savepoint);
+            return result;
+        } catch (SQLException | RuntimeException e) {
+            try {
+                conn.rollback(savepoint);
+            } catch (SQLException ignored) {
+            }
+            throw e;
+        } finally {
+            transactionDepth--;
+        }
+    }
+
+    /**
+     * Closes the connection, unless it belongs to the unit of work this PoolDB joined.
+     */
+    @Override
+    public void close(Connection connection) {
+        if (outer != null && connection != null && connection == outer.con) {
+            return;
+        }
+        super.close(connection);
+    }
+
+    /**
+     * Rolls back, unless the connection is in a transaction() of the unit of work this
+     * PoolDB joined; the failure then reaches that transaction, which rolls back as a whole.
+     */
+    @Override
+    public void rollback(Connection connection) {
+        if (outer != null && connection != null && connection == outer.con && outer.transactionDepth > 0) {
+            return;
+        }
+        super.rollback(connection);
+    }
+
+    /**
+     * Returns the borrowed connection, if any, to the pool. Uncommitted work is rolled back.
+     * A joined PoolDB leaves the connection to its unit of work; a bound one is unbound.
+     */
+    @Override
+    public void close() {
+        if (bound) {
+            bound = false;
+            boundUnit.remove();
+        }
+        if (outer != null) {
+            return;
         }
-		return connection;
+        if (con != null) {
+            try {
+                if (!con.isClosed() && !con.getAutoCommit()) {
+                    con.rollback();
+                }
+            } catch (SQLException ignored) {
+            }
+            close(con);
+            con = null;
+        }
+    }
+
+    public static JSONObject getStats() {
+        return metrics.toJSON(basicDataSource);
+    }
+
+    /**
+     * Recent average wait for a primary pool connection, used to shed load.
+     */
+    public static long getRecentWaitMillis() {
+        return metrics.getRecentWaitMillis();
+    }
+
+    public static JSONObject getReplicaStats() {
+        JSONObject stats = replicaMetrics.toJSON(replicaDataSource);
+        stats.put("configured", replicaDataSource != null);
+        stats.put("routing", ReplicaMonitor.getStats());
+        return stats;
     }
-}
\ No newline at end of file
+}
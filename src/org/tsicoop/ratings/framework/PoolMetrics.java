@@ -0,0 +1,92 @@
+package org.tsicoop.ratings.framework;
+
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+import com.zaxxer.hikari.metrics.IMetricsTracker;
+import com.zaxxer.hikari.metrics.MetricsTrackerFactory;
+import com.zaxxer.hikari.metrics.PoolStats;
+import org.json.simple.JSONObject;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Connection pool metrics. HikariCP reports how long callers waited for a connection
+ * and how long it was held; PoolDB adds the end-to-end borrow latency, which also
+ * covers resetting the connection for the unit of work.
+ */
+public class PoolMetrics implements MetricsTrackerFactory, IMetricsTracker {
+
+    private final LatencyHistogram wait = new LatencyHistogram();
+    private final LatencyHistogram borrow = new LatencyHistogram();
+    private final LatencyHistogram usage = new LatencyHistogram();
+    private final LatencyHistogram create = new LatencyHistogram();
+    private final LongAdder timeouts = new LongAdder();
+
+    // Moving average of recent connection waits, only meaningful while waits keep being recorded
+    private static final long RECENT_NANOS = TimeUnit.SECONDS.toNanos(2);
+    private final AtomicLong recentWaitNanos = new AtomicLong();
+    private volatile long lastWaitAt = System.nanoTime() - 2 * RECENT_NANOS;
+
+    @Override
+    public IMetricsTracker create(String poolName, PoolStats poolStats) {
+        return this;
+    }
+
+    @Override
+    public void recordConnectionAcquiredNanos(long elapsedAcquiredNanos) {
+        wait.record(elapsedAcquiredNanos);
+        recentWaitNanos.accumulateAndGet(elapsedAcquiredNanos, (average, sample) -> average + (sample - average) / 8);
+        lastWaitAt = System.nanoTime();
+    }
+
+    @Override
+    public void recordConnectionUsageMillis(long elapsedBorrowedMillis) {
+        usage.record(TimeUnit.MILLISECONDS.toNanos(elapsedBorrowedMillis));
+    }
+
+    @Override
+    public void recordConnectionCreatedMillis(long connectionCreatedMillis) {
+        create.record(TimeUnit.MILLISECONDS.toNanos(connectionCreatedMillis));
+    }
+
+    @Override
+    public void recordConnectionTimeout() {
+        timeouts.increment();
+    }
+
+    public void recordBorrowNanos(long nanos) {
+        borrow.record(nanos);
+    }
+
+    /**
+     * How long callers have waited for a connection lately, averaged over roughly the last
+     * eight connections; 0 if none has been handed out in the last couple of seconds.
+     */
+    public long getRecentWaitMillis() {
+        if (System.nanoTime() - lastWaitAt > RECENT_NANOS) {
+            return 0;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(recentWaitNanos.get());
+    }
+
+    public JSONObject toJSON(HikariDataSource dataSource) {
+        JSONObject stats = new JSONObject();
+        HikariPoolMXBean pool = dataSource != null ? dataSource.getHikariPoolMXBean() : null;
+        if (pool != null) {
+            stats.put("active", pool.getActiveConnections());
+            stats.put("idle", pool.getIdleConnections());
+            stats.put("total", pool.getTotalConnections());
+            stats.put("pending", pool.getThreadsAwaitingConnection());
+            stats.put("max", dataSource.getMaximumPoolSize());
+        }
+        stats.put("wait", wait.toJSON());
+        stats.put("borrow", borrow.toJSON());
+        stats.put("usage", usage.toJSON());
+        stats.put("create", create.toJSON());
+        stats.put("timeouts", timeouts.sum());
+        stats.put("recent_wait_ms", getRecentWaitMillis());
+        return stats;
+    }
+}
@@ -0,0 +1,172 @@
+package org.tsicoop.ratings.framework;
+
+import jakarta.servlet.http.HttpServletRequest;
+import org.json.simple.JSONObject;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The rate limit of one ApiFunction. Each caller (client IP, plus API key once verified)
+ * gets a token bucket of perMinute tokens a minute holding up to burst. Optionally, all callers
+ * together are held to globalPerMinute over a sliding one minute window, for functions
+ * that call a rate limited service (e.g. WhatsOnChain).
+ *
+ * Neither takes a lock. A bucket is one AtomicLong in the form of the generic cell rate
+ * algorithm: the time at which the bucket would be full again, advanced by one token's
+ * interval per request with compareAndSet. A request is refused while that time is more
+ * than burst intervals ahead. The window keeps a count for the current and previous
+ * minute and weights the previous one by how much of it still overlaps the window.
+ *
+ * Buckets that have refilled are dropped by a sweep at most once a minute, so the map only
+ * holds callers seen within about a minute.
+ *
+ * Limits are enforced by InterceptingFilter unless framework.ratelimit.enabled is false.
+ * The client IP is the connection's remote address, or the first X-Forwarded-For address
+ * when framework.ratelimit.trust_forwarded_for is set because a proxy fronts the service.
+ */
+public class RateLimiter {
+
+    private static final long WINDOW_MS = 60_000;
+    private static final long SWEEP_INTERVAL_MS = 60_000;
+
+    private static volatile boolean enabled = true;
+    private static volatile boolean trustForwardedFor = false;
+
+    private final int perMinute;
+    private final int burst;
+    private final long intervalNanos;
+    private final long burstNanos;
+    private final int globalPerMinute;
+
+    private final Map<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+    private final AtomicLong lastSweep = new AtomicLong(System.nanoTime());
+
+    // Sliding window: the minute being counted and the counts of it and the one before
+    private final AtomicLong windowStart = new AtomicLong(System.currentTimeMillis() / WINDOW_MS * WINDOW_MS);
+    private final AtomicLong current = new AtomicLong();
+    private final AtomicLong previous = new AtomicLong();
+
+    private final LongAdder allowed = new LongAdder();
+    private final LongAdder limited = new LongAdder();
+    private final LongAdder globallyLimited = new LongAdder();
+
+    public static void configure() {
+        enabled = !"false".equalsIgnoreCase(property("framework.ratelimit.enabled"));
+        trustForwardedFor = "true".equalsIgnoreCase(property("framework.ratelimit.trust_forwarded_for"));
+    }
+
+    private static String property(String key) {
+        return SystemConfig.getAppConfig() != null ? SystemConfig.getAppConfig().getProperty(key, "").trim() : "";
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * The caller a request is counted against: its client IP, together with its API key
+     * once authentication has verified that key (null otherwise). An unverified key is
+     * never used, since a caller could send a new one with each request.
+     */
+    public static String callerOf(HttpServletRequest req, String verifiedApiKey) {
+        String ip = null;
+        if (trustForwardedFor) {
+            String forwarded = req.getHeader("X-Forwarded-For");
+            if (forwarded != null && !forwarded.isBlank()) {
+                int comma = forwarded.indexOf(',');
+                ip = (comma >= 0 ? forwarded.substring(0, comma) : forwarded).trim();
+            }
+        }
+        if (ip == null) {
+            ip = req.getRemoteAddr();
+        }
+        return verifiedApiKey != null ? ip + "|" + verifiedApiKey : ip;
+    }
+
+    /**
+     * A limit of perMinute requests a minute per caller with bursts of up to burst, and
+     * of globalPerMinute a minute from all callers together (0 for none).
+     */
+    public RateLimiter(int perMinute, int burst, int globalPerMinute) {
+        this.perMinute = Math.max(1, perMinute);
+        this.burst = Math.max(1, burst);
+        this.intervalNanos = 60_000_000_000L / this.perMinute;
+        this.burstNanos = intervalNanos * this.burst;
+        this.globalPerMinute = Math.max(0, globalPerMinute);
+    }
+
+    /**
+     * Takes a token for the caller. Returns 0 if the request may proceed, otherwise how
+     * many milliseconds to wait before trying again.
+     */
+    public long acquire(String caller) {
+        long now = System.nanoTime();
+        sweep(now);
+        AtomicLong bucket = buckets.computeIfAbsent(caller, k -> new AtomicLong(now));
+        while (true) {
+            long full = bucket.get();
+            long next = Math.max(full, now) + intervalNanos;
+            if (next - now > burstNanos) {
+                limited.increment();
+                return Math.max(1, (next - now - burstNanos) / 1_000_000);
+            }
+            if (bucket.compareAndSet(full, next)) {
+                break;
+            }
+        }
+        if (globalPerMinute > 0) {
+            long wait = acquireGlobal();
+            if (wait > 0) {
+                // Give the caller its token back; it was not served
+                bucket.addAndGet(-intervalNanos);
+                globallyLimited.increment();
+                return wait;
+            }
+        }
+        allowed.increment();
+        return 0;
+    }
+
+    private long acquireGlobal() {
+        long now = System.currentTimeMillis();
+        long minute = now / WINDOW_MS * WINDOW_MS;
+        long start = windowStart.get();
+        if (minute > start && windowStart.compareAndSet(start, minute)) {
+            // Roll over; after a quiet minute or more the previous window is empty
+            long ended = current.getAndSet(0);
+            previous.set(minute - start == WINDOW_MS ? ended : 0);
+        }
+        double overlap = 1.0 - (double) (now - windowStart.get()) / WINDOW_MS;
+        long count = current.incrementAndGet();
+        if (count + previous.get() * Math.max(0.0, overlap) > globalPerMinute) {
+            current.decrementAndGet();
+            return Math.max(1, windowStart.get() + WINDOW_MS - now);
+        }
+        return 0;
+    }
+
+    private void sweep(long now) {
+        long last = lastSweep.get();
+        if (now - last >= SWEEP_INTERVAL_MS * 1_000_000 && lastSweep.compareAndSet(last, now)) {
+            buckets.values().removeIf(bucket -> bucket.get() <= now);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        stats.put("per_minute", perMinute);
+        stats.put("burst", burst);
+        if (globalPerMinute > 0) {
+            stats.put("global_per_minute", globalPerMinute);
+            stats.put("globally_limited", globallyLimited.sum());
+        }
+        stats.put("callers", buckets.size());
+        stats.put("allowed", allowed.sum());
+        stats.put("limited", limited.sum());
+        return stats;
+    }
+}
@@ -0,0 +1,117 @@
+package org.tsicoop.ratings.framework;
+
+import org.json.simple.JSONObject;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Tracks whether the read replica may serve reads. A background check measures replay
+ * lag every few seconds; the replica is used only while the last check succeeded and the
+ * lag was within framework.db.replica.max_lag_ms. A failed borrow takes the replica out
+ * of rotation until the next successful check.
+ */
+public class ReplicaMonitor {
+
+    private static final long DEFAULT_MAX_LAG_MS = 5000;
+    private static final long DEFAULT_CHECK_INTERVAL_MS = 2000;
+
+    // Zero when the replica has replayed everything it received, otherwise the age of the last replayed transaction.
+    // NULL when no WAL receiver is streaming: a disconnected replica has replayed all it received but may be far behind.
+    // (status is only visible with pg_read_all_stats; without it, a receiver process being present is taken as streaming.)
+    private static final String LAG_SQL =
+            "SELECT CASE WHEN NOT pg_is_in_recovery() THEN 0 " +
+            "WHEN NOT EXISTS (SELECT 1 FROM pg_stat_wal_receiver WHERE COALESCE(status, 'streaming') = 'streaming') THEN NULL " +
+            "WHEN pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() THEN 0 " +
+            "ELSE COALESCE(EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()) * 1000, 0) END AS lag_ms";
+
+    private static volatile boolean healthy = false;
+    private static volatile long lagMs = -1;
+    private static volatile long maxLagMs = DEFAULT_MAX_LAG_MS;
+    private static ScheduledExecutorService scheduler = null;
+
+    private static final LongAdder replicaReads = new LongAdder();
+    private static final LongAdder primaryReads = new LongAdder();
+    private static final LongAdder failovers = new LongAdder();
+
+    protected static synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+        maxLagMs = SystemConfig.getLongProperty("framework.db.replica.max_lag_ms", DEFAULT_MAX_LAG_MS);
+        long interval = SystemConfig.getLongProperty("framework.db.replica.lag_check_ms", DEFAULT_CHECK_INTERVAL_MS);
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "tsi-replica-monitor");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(ReplicaMonitor::check, 0, Math.max(100L, interval), TimeUnit.MILLISECONDS);
+    }
+
+    protected static synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+        healthy = false;
+    }
+
+    public static boolean isHealthy() {
+        return healthy;
+    }
+
+    private static void check() {
+        try (Connection conn = PoolDB.borrowReplica();
+             Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery(LAG_SQL)) {
+            rs.next();
+            long lag = rs.getLong("lag_ms");
+            if (rs.wasNull()) {
+                lagMs = -1;
+                markUnhealthy(new SQLException("replica is not streaming from the primary"));
+                return;
+            }
+            lagMs = lag;
+            boolean withinLag = lagMs <= maxLagMs;
+            if (withinLag != healthy) {
+                System.out.println("Read replica " + (withinLag ? "back in rotation" : "out of rotation") + ", lag " + lagMs + " ms");
+            }
+            healthy = withinLag;
+        } catch (Exception e) {
+            markUnhealthy(e);
+        }
+    }
+
+    protected static void markUnhealthy(Exception e) {
+        if (healthy) {
+            failovers.increment();
+            System.err.println("Read replica out of rotation, reads will use the primary: " + e.getMessage());
+        }
+        healthy = false;
+    }
+
+    protected static void recordRead(boolean onReplica) {
+        if (onReplica) {
+            replicaReads.increment();
+        } else {
+            primaryReads.increment();
+        }
+    }
+
+    public static JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        stats.put("healthy", healthy);
+        stats.put("lag_ms", lagMs);
+        stats.put("max_lag_ms", maxLagMs);
+        stats.put("replica_reads", replicaReads.sum());
+        stats.put("primary_reads", primaryReads.sum());
+        stats.put("failovers", failovers.sum());
+        return stats;
+    }
+}
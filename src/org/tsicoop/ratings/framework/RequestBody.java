@@ -0,0 +1,46 @@
+package org.tsicoop.ratings.framework;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.json.simple.JSONObject;
+
+import java.io.IOException;
+
+/**
+ * Request-scoped JSON body. The body is parsed once into a Jackson tree, which the
+ * schema validator uses directly; Actions get a json-simple view of the same tree
+ * that is built on first use and then shared for the rest of the request.
+ */
+public class RequestBody {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final JsonNode tree;
+    private JSONObject view = null;
+
+    private RequestBody(JsonNode tree) {
+        this.tree = tree;
+    }
+
+    public static RequestBody parse(byte[] data, int offset, int length) throws IOException {
+        return new RequestBody(MAPPER.readTree(data, offset, length));
+    }
+
+    /**
+     * Parsed body, or null when the body was empty.
+     */
+    public JsonNode getTree() {
+        return tree != null && !tree.isMissingNode() ? tree : null;
+    }
+
+    /**
+     * json-simple view of the body, or null when the body is not a JSON object.
+     * Requests are handled on a single thread, so the view is memoized without locking.
+     */
+    public JSONObject getJSONObject() {
+        if (view == null && tree != null && tree.isObject()) {
+            view = (JSONObject) JSONUtil.toJSONSimple(tree);
+        }
+        return view;
+    }
+}
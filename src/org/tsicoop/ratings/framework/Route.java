@@ -0,0 +1,52 @@
+package org.tsicoop.ratings.framework;
+
+import java.util.Map;
+
+/**
+ * Resolved target of an API path: the category it was called under, the service name
+ * from _processor.tsi, the shared Action instance that serves it and that Action's
+ * registered _func handlers.
+ */
+public class Route {
+
+    private final String category;
+    private final String serviceName;
+    private final Action action;
+    private final Map<String, ApiFunction> functions;
+    private final boolean sheddable;
+
+    public Route(String category, String serviceName, Action action, Map<String, ApiFunction> functions) {
+        this.category = category;
+        this.serviceName = serviceName;
+        this.action = action;
+        this.functions = functions;
+        this.sheddable = functions.isEmpty() || functions.values().stream().anyMatch(ApiFunction::isSheddable);
+    }
+
+    public String getCategory() {
+        return category;
+    }
+
+    public String getServiceName() {
+        return serviceName;
+    }
+
+    /**
+     * Whether requests to this path may be shed under load: false only when every _func
+     * it serves is marked alwaysServe(), since shedding happens before the body is read.
+     */
+    public boolean isSheddable() {
+        return sheddable;
+    }
+
+    public Action getAction() {
+        return action;
+    }
+
+    /**
+     * Handler registered for a lowercased _func, or null if the Action has none.
+     */
+    public ApiFunction getFunction(String func) {
+        return functions.get(func);
+    }
+}
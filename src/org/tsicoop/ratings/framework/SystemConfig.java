@@ -2,13 +2,8 @@ package org.tsicoop.ratings.framework;
 
 import jakarta.servlet.ServletContext;
 import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.util.HashMap;
 import java.util.Properties;
 
 
@@ -17,8 +12,6 @@ public class SystemConfig {
     private static Properties schemaConfig;
     private static Properties processorConfig;
 
-    private static HashMap<String,JSONObject> jsonTemplateCache = new HashMap<String,JSONObject>();
-
     private static ServletContext appCtx;
 
     private static byte[] masterAESKey;
@@ -44,6 +37,55 @@ public class SystemConfig {
         appConfig.setProperty("framework.db.user",System.getenv("POSTGRES_USER"));
         appConfig.setProperty("framework.db.password",System.getenv("POSTGRES_PASSWD"));
         appConfig.setProperty("framework.db.host",System.getenv("POSTGRES_HOST"));
+        setFromEnv("framework.db.pool.max_size","POSTGRES_POOL_MAX_SIZE");
+        setFromEnv("framework.db.pool.min_idle","POSTGRES_POOL_MIN_IDLE");
+        setFromEnv("framework.db.pool.connection_timeout_ms","POSTGRES_POOL_CONNECTION_TIMEOUT_MS");
+        setFromEnv("framework.db.pool.idle_timeout_ms","POSTGRES_POOL_IDLE_TIMEOUT_MS");
+        setFromEnv("framework.db.pool.max_lifetime_ms","POSTGRES_POOL_MAX_LIFETIME_MS");
+        setFromEnv("framework.db.pool.leak_detection_ms","POSTGRES_POOL_LEAK_DETECTION_MS");
+        setFromEnv("framework.db.replica.host","POSTGRES_REPLICA_HOST");
+        setFromEnv("framework.db.replica.pool.max_size","POSTGRES_REPLICA_POOL_MAX_SIZE");
+        setFromEnv("framework.db.replica.pool.min_idle","POSTGRES_REPLICA_POOL_MIN_IDLE");
+        setFromEnv("framework.db.replica.max_lag_ms","POSTGRES_REPLICA_MAX_LAG_MS");
+        setFromEnv("framework.db.replica.lag_check_ms","POSTGRES_REPLICA_LAG_CHECK_MS");
+        setFromEnv("framework.http.max_body_bytes","TSI_RATINGS_MAX_BODY_BYTES");
+        setFromEnv("framework.jwt.cache_size","TSI_RATINGS_JWT_CACHE_SIZE");
+        setFromEnv("framework.apikey.cache_ttl_ms","TSI_RATINGS_API_KEY_CACHE_TTL_MS");
+        setFromEnv("framework.mail.workers","TSI_RATINGS_MAIL_WORKERS");
+        setFromEnv("framework.mail.queue_size","TSI_RATINGS_MAIL_QUEUE_SIZE");
+        setFromEnv("framework.mail.max_attempts","TSI_RATINGS_MAIL_MAX_ATTEMPTS");
+        setFromEnv("framework.mail.batch_url","ZOHO_API_BATCH_HOST");
+        setFromEnv("framework.mail.outbox.max_attempts","TSI_RATINGS_MAIL_OUTBOX_MAX_ATTEMPTS");
+        setFromEnv("framework.otp.store","TSI_RATINGS_OTP_STORE");
+        setFromEnv("framework.ratelimit.enabled","TSI_RATINGS_RATE_LIMIT_ENABLED");
+        setFromEnv("framework.ratelimit.trust_forwarded_for","TSI_RATINGS_TRUST_FORWARDED_FOR");
+        setFromEnv("framework.shed.max_in_flight","TSI_RATINGS_SHED_MAX_IN_FLIGHT");
+        setFromEnv("framework.shed.max_pool_wait_ms","TSI_RATINGS_SHED_MAX_POOL_WAIT_MS");
+    }
+
+    // Optional settings are only set when present so getters can fall back to defaults
+    private static void setFromEnv(String key, String envName) {
+        String value = System.getenv(envName);
+        if (value != null && !value.trim().isEmpty()) {
+            appConfig.setProperty(key, value.trim());
+        }
+    }
+
+    public static long getLongProperty(String key, long defaultValue) {
+        String value = appConfig != null ? appConfig.getProperty(key) : null;
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid value for " + key + ": " + value + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    public static int getIntProperty(String key, int defaultValue) {
+        return (int) getLongProperty(key, defaultValue);
     }
 
     public static Properties getAppConfig() {
@@ -59,34 +101,12 @@ public class SystemConfig {
         return appCtx;
     }
 
+    /**
+     * A copy of the template at filePath, or an empty object if it cannot be read.
+     * Templates are loaded once by TemplateStore; the copy is the caller's to modify.
+     */
     public static JSONObject readJSONTemplate(String filePath) {
-        JSONParser parser = new JSONParser();
-        JSONObject jsonObject = new JSONObject();
-        StringBuffer buff = new StringBuffer();
-        if(jsonTemplateCache.get(filePath) != null){
-            jsonObject =  (JSONObject) jsonTemplateCache.get(filePath);
-        }
-        else {
-            try {
-                InputStream inputStream = SystemConfig.getAppCtx().getResourceAsStream(filePath);
-                if (inputStream != null) {
-                    try (InputStreamReader isReader = new InputStreamReader(inputStream);
-                         BufferedReader reader = new BufferedReader(isReader)) { // BufferedReader for efficient line reading
-                        String line;
-                        while ((line = reader.readLine()) != null) {
-                            buff.append(line);
-                        }
-                    } catch (Exception e) {
-                        System.err.println("Error reading stream: " + e.getMessage());
-                    }
-                }
-
-                jsonObject = (JSONObject) parser.parse(buff.toString());
-                jsonTemplateCache.put(filePath,jsonObject);
-            } catch (Exception e) {
-                System.err.println("Error reading JSON file from path " + filePath + ": " + e.getMessage());
-            }
-        }
-        return jsonObject;
+        TemplateStore.Template template = TemplateStore.get(filePath);
+        return template != null ? template.toJSON() : new JSONObject();
     }
 }
@@ -0,0 +1,144 @@
+package org.tsicoop.ratings.framework;
+
+import jakarta.servlet.ServletContext;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * The assessment templates under /WEB-INF/assessments/, loaded once at startup and keyed by
+ * file name, which carries the version (dma-v1, cma-v1, ...). A template added later is
+ * picked up on the next deploy. A loaded template never changes: callers get their own
+ * parsed copy from toJSON(), and the response body for serving it
+ * ({"success":true,"data":<template>}) is serialized once, together with its ETag, so it
+ * can be written as is.
+ */
+@SuppressWarnings("unchecked")
+public class TemplateStore {
+
+    public static final String TEMPLATE_DIR = "/WEB-INF/assessments/";
+    private static final String TEMPLATE_EXT = ".json";
+    private static final Pattern VALID_NAME = Pattern.compile("[A-Za-z0-9_-]+");
+
+    private static final Map<String, Template> templates = new ConcurrentHashMap<>();
+
+    public static class Template {
+        private final String name;
+        private final String source;
+        private final byte[] responseBody;
+        private final String etag;
+
+        private Template(String name, String source, byte[] responseBody, String etag) {
+            this.name = name;
+            this.source = source;
+            this.responseBody = responseBody;
+            this.etag = etag;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * A fresh copy of the template, which the caller is free to modify.
+         */
+        public JSONObject toJSON() {
+            try {
+                return (JSONObject) new JSONParser().parse(source);
+            } catch (ParseException e) {
+                throw new IllegalStateException(e); // Parsed once already when loaded
+            }
+        }
+
+        /**
+         * The serialized success response carrying this template. Shared; do not modify.
+         */
+        public byte[] getResponseBody() {
+            return responseBody;
+        }
+
+        public String getETag() {
+            return etag;
+        }
+    }
+
+    public static void load(ServletContext context) {
+        Set<String> paths = context.getResourcePaths(TEMPLATE_DIR);
+        if (paths != null) {
+            for (String path : paths) {
+                if (path.endsWith(TEMPLATE_EXT)) {
+                    try {
+                        Template template = read(context, path);
+                        templates.put(template.getName(), template);
+                    } catch (Exception e) {
+                        System.err.println("Error loading template " + path + ": " + e.getMessage());
+                    }
+                }
+            }
+        }
+        System.out.println("Loaded " + templates.size() + " assessment templates");
+    }
+
+    /**
+     * The template with the given name (e.g. "dma-v1") or path
+     * (e.g. "/WEB-INF/assessments/dma-v1.json"), or null if there is no such template.
+     */
+    public static Template get(String nameOrPath) {
+        String name = nameOf(nameOrPath);
+        if (!VALID_NAME.matcher(name).matches()) {
+            return null; // Also keeps lookups inside the template directory
+        }
+        // Only what load() found; an unknown version is a plain map miss with no file I/O
+        return templates.get(name);
+    }
+
+    private static String nameOf(String nameOrPath) {
+        String name = nameOrPath;
+        if (name.startsWith(TEMPLATE_DIR)) {
+            name = name.substring(TEMPLATE_DIR.length());
+        }
+        if (name.endsWith(TEMPLATE_EXT)) {
+            name = name.substring(0, name.length() - TEMPLATE_EXT.length());
+        }
+        return name;
+    }
+
+    private static Template read(ServletContext context, String path) throws IOException, ParseException {
+        byte[] raw;
+        try (InputStream in = context.getResourceAsStream(path)) {
+            if (in == null) {
+                throw new IOException("Not found: " + path);
+            }
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            in.transferTo(buffer);
+            raw = buffer.toByteArray();
+        }
+        JSONObject parsed = (JSONObject) new JSONParser().parse(new String(raw, StandardCharsets.UTF_8));
+        String source = parsed.toJSONString();
+        JSONObject response = new JSONObject();
+        response.put("success", true);
+        response.put("data", parsed);
+        byte[] body = response.toJSONString().getBytes(StandardCharsets.UTF_8);
+        return new Template(nameOf(path), source, body, OutputProcessor.etagOf(body));
+    }
+
+    public static JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        for (Template template : templates.values()) {
+            JSONObject entry = new JSONObject();
+            entry.put("etag", template.getETag());
+            entry.put("bytes", template.getResponseBody().length);
+            stats.put(template.getName(), entry);
+        }
+        return stats;
+    }
+}
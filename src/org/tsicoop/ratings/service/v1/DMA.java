@@ -6,7 +6,6 @@ import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
-import org.json.simple.parser.ParseException;
 
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
@@ -15,7 +14,10 @@ import java.net.HttpURLConnection;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.sql.*;
-import java.util.Iterator;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
 import java.util.UUID; // Used for simulating blockchain TX IDs
 
 /**
@@ -29,29 +31,99 @@ public class DMA implements Action {
     private static final String EXPRESS_VERIFY_API_URL = "http://express-middleware-service/api/v1/verification/anchor";
     private static final String INTERNAL_SERVICE_TOKEN = "INTERNAL_JWT_SECRET_FOR_EXPRESS_COMMUNICATION"; // Placeholder
     private static final String API_URL = "/api/dma";
+    private static final String DMA_TEMPLATE = "/WEB-INF/assessments/dma-v1.json";
+    private static final String ADMIN_ROLE = "admin";
+
+    // The anchored proof, plus the MSME and auditor profile fields the details response joins in, which can still change
+    private static final String SQL_ANCHORED_ETAG = "SELECT ar.\"tsiHash\", m.\"companyName\", m.\"udyamRegistrationNo\", u.email, u.\"linkedin\" " +
+            "FROM \"dma_assessment\" d " +
+            "JOIN \"anchor_record\" ar ON d.\"assessmentId\" = ar.\"anchorId\" " +
+            "JOIN \"msme\" m ON d.\"msmeId\" = m.\"msmeId\" " +
+            "JOIN \"users\" u ON d.\"auditorId\" = u.\"userId\" " +
+            "WHERE d.\"assessmentId\" = ? AND d.status = 'ANCHORED'";
+    private static final String ANCHORED_CACHE_CONTROL = "public, max-age=60";
+    private static final long ANCHORED_ETAG_TTL_MS = 60000; // Profile edits show within a minute
+    private static final long NOT_ANCHORED_TTL_MS = 30000;
+    private static final String NOT_ANCHORED = ""; // Cached while an assessment is not anchored yet
+    private static final ExpiringCache<Long, String> anchoredETags = new ExpiringCache<>(10000);
+    private static final int DEFAULT_PAGE_SIZE = 50;
+    private static final int MAX_PAGE_SIZE = 200;
 
     /**
-     * Handles all DMA operations via a single POST endpoint.
+     * Handler for operations that take the assessment ID from the input.
      */
-    @Override
-    public void post(HttpServletRequest req, HttpServletResponse res) {
-        JSONObject input = null;
-        JSONObject output = null;
-
-        Long auditorId = InputProcessor.getUserId(req);
-
-        try {
-            input = InputProcessor.getInput(req);
-            String func = (String) input.get("_func");
-            String txId = (String) input.get("txId");
-            String tsiHash = (String) input.get("tsiHash");
+    private interface AssessmentHandler {
+        void handle(HttpServletRequest req, HttpServletResponse res, JSONObject input, Long assessmentId) throws Exception;
+    }
 
-            if (func == null || func.trim().isEmpty()) {
-                OutputProcessor.errorResponse(res, HttpServletResponse.SC_BAD_REQUEST, "Bad Request", "Missing required '_func'.", req.getRequestURI());
+    /**
+     * Registers a handler for each DMA operation. Verification endpoints are public.
+     */
+    @Override
+    public void register(FunctionRegistry registry) {
+        // Served from the pre-serialized template; clients revalidate with If-None-Match
+        registry.register("get_dma_questionnaire", this::getQuestionnaire)
+                .cacheable((req, input) -> {
+                    TemplateStore.Template template = TemplateStore.get("dma-" + input.get("version"));
+                    return template != null ? template.getETag() : null;
+                }, "private, no-cache");
+
+        // Auditor saves progress, score, and qualitative input.
+        registry.register("save_assessment", withAssessmentId((req, res, input, assessmentId) ->
+                OutputProcessor.send(res, HttpServletResponse.SC_OK, saveAssessment(assessmentId, InputProcessor.getUserId(req), input)))); // Use SC_OK for save/update
+
+        // Auditor confirms final submission
+        registry.register("finalize_assessment", withAssessmentId((req, res, input, assessmentId) ->
+                OutputProcessor.send(res, HttpServletResponse.SC_ACCEPTED, updateAnchorRecord(assessmentId, (String) input.get("txId"), (String) input.get("tsiHash"), "DMA"))));
+
+        registry.register("get_assessment_list", this::getAssessmentList).readOnly();
+
+        // Ranking of anchored scores for lenders, optionally by sector, paged with nextCursor
+        registry.register("get_leaderboard", this::getLeaderboard).readOnly();
+        MetricsRegistry.register("leaderboard", Leaderboard::getStats);
+
+        // Admin re-scores stored assessments after a template change; progress via get_rescore_status
+        registry.register("rescore_assessments", (req, res, input) -> {
+            requireAdmin(req);
+            String template = input.get("template") != null ? (String) input.get("template") : "dma-v1";
+            int batchSize = input.get("batchSize") != null ? ((Number) input.get("batchSize")).intValue() : Rescore.DEFAULT_BATCH_SIZE;
+            if (!Rescore.start(template, batchSize, Boolean.TRUE.equals(input.get("restart")))) {
+                OutputProcessor.errorResponse(res, HttpServletResponse.SC_CONFLICT, "Conflict", "A re-scoring job is already running.", req.getRequestURI());
                 return;
             }
+            OutputProcessor.send(res, HttpServletResponse.SC_ACCEPTED, new JSONObject() {{ put("success", true); put("data", Rescore.getStats()); }});
+        });
+        registry.register("get_rescore_status", (req, res, input) -> {
+            requireAdmin(req);
+            OutputProcessor.send(res, HttpServletResponse.SC_OK, new JSONObject() {{ put("success", true); put("data", Rescore.getStats()); }});
+        });
+        MetricsRegistry.register("rescore", Rescore::getStats);
+
+        registry.register("get_dma_assessment_details", withAssessmentId((req, res, input, assessmentId) ->
+                OutputProcessor.send(res, HttpServletResponse.SC_OK, getAssessmentDetails(assessmentId))))
+                .auth(ApiFunction.Auth.PUBLIC)
+                .cacheable(this::anchoredETag, ANCHORED_CACHE_CONTROL); // Anchored records only change through the joined profiles
+        MetricsRegistry.register("anchored_etags", anchoredETags::getStats);
+
+        // Public and calls WhatsOnChain, so also held under its rate limit across all callers
+        registry.register("validate_assessment", (req, res, input) ->
+                OutputProcessor.send(res, HttpServletResponse.SC_OK, validateAssessment((String) input.get("txId"), (String) input.get("tsiHash"))))
+                .auth(ApiFunction.Auth.PUBLIC)
+                .rateLimit(30, 10, 150);
+    }
+
+    private static void requireAdmin(HttpServletRequest req) {
+        if (!ADMIN_ROLE.equalsIgnoreCase(InputProcessor.getRole(req))) {
+            throw new SecurityException("Access Denied.");
+        }
+    }
 
-            // Extract Assessment ID (required for Save and Finalize)
+    /**
+     * Extracts the assessment ID (required for Save and Finalize) before calling the handler.
+     * "New" or a missing ID is passed on as null; anything else that is not a number is rejected.
+     */
+    private ApiFunction.Handler withAssessmentId(AssessmentHandler handler) {
+        return (req, res, input) -> {
             Long assessmentId = null;
             Object assessmentIdObj = input.get("assessmentId");
             if (assessmentIdObj != null && !assessmentIdObj.equals("New")) {
@@ -62,110 +134,144 @@ public class DMA implements Action {
                     return;
                 }
             }
+            handler.handle(req, res, input, assessmentId);
+        };
+    }
 
-            switch (func.toLowerCase()) {
-                case "get_dma_questionnaire":
-                    output = getQuestionnaire();
-                    OutputProcessor.send(res, HttpServletResponse.SC_OK, output);
-                    break;
-
-                case "save_assessment":
-                    // Auditor saves progress, score, and qualitative input.
-                    output = saveAssessment(assessmentId, auditorId, input);
-                    OutputProcessor.send(res, HttpServletResponse.SC_OK, output); // Use SC_OK for save/update
-                    break;
-
-                case "finalize_assessment":
-                    // Auditor confirms final submission
-
-                    output =  updateAnchorRecord(assessmentId, txId, tsiHash, "DMA");
-                    OutputProcessor.send(res, HttpServletResponse.SC_ACCEPTED, output);
-                    break;
-
-                case "get_assessment_list":
-                    output = getAssessmentList(input, auditorId);
-                    OutputProcessor.send(res, HttpServletResponse.SC_OK, output);
-                    break;
-
-                case "get_dma_assessment_details":
-                    output = getAssessmentDetails(assessmentId);
-                    OutputProcessor.send(res, HttpServletResponse.SC_OK, output);
-                    break;
-
-                case "validate_assessment":
-                    output = validateAssessment(txId, tsiHash);
-                    OutputProcessor.send(res, HttpServletResponse.SC_OK, output);
-                    break;
-
-                case "submit_assessment": // Original function is renamed/replaced
-                default:
-                    OutputProcessor.errorResponse(res, HttpServletResponse.SC_BAD_REQUEST, "Bad Request", "Unknown function: '" + func + "'.", req.getRequestURI());
-                    break;
-            }
-
-        } catch (Exception e) {
-            e.printStackTrace();
-            OutputProcessor.errorResponse(res, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Internal Server Error", "An unexpected error occurred: " + e.getMessage(), req.getRequestURI());
+    /**
+     * Returns one page of the anchored score ranking. Pass the returned nextCursor to get the next page.
+     */
+    private void getLeaderboard(HttpServletRequest req, HttpServletResponse res, JSONObject input) throws SQLException {
+        int limit = input.get("limit") != null ? ((Number) input.get("limit")).intValue() : 10;
+        try {
+            OutputProcessor.send(res, HttpServletResponse.SC_OK,
+                    Leaderboard.page((String) input.get("industrySector"), limit, (String) input.get("cursor")));
+        } catch (IllegalArgumentException e) {
+            OutputProcessor.errorResponse(res, HttpServletResponse.SC_BAD_REQUEST, "Bad Request", e.getMessage(), req.getRequestURI());
         }
     }
 
     /**
-     * Retrieves a list of all Digital Maturity Assessments (DMA) assigned to a specific auditor.
-     * The list includes relevant details from MSME and AnchorRecord tables.
-     * * @param input JSON object containing "auditorId".
-     * @return JSONObject containing success status and an array of assessment records.
+     * Streams one page of the Digital Maturity Assessments (DMA) assigned to the current auditor,
+     * newest first, with relevant details from the MSME and AnchorRecord tables.
+     * Optional filters: status, industrySector, minScore, maxScore. Pages hold up to limit rows
+     * (default 50); pass the returned nextCursor as cursor to get the next page.
      */
-    private JSONObject getAssessmentList(JSONObject input, long auditorId) throws SQLException {
-        Connection conn = null;
-        PreparedStatement pstmt = null;
-        ResultSet rs = null;
-        PoolDB pool = new PoolDB();
-
-        JSONArray assessmentArray = new JSONArray();
-        JSONObject output = new JSONObject();
+    private void getAssessmentList(HttpServletRequest req, HttpServletResponse res, JSONObject input) throws Exception {
+        long auditorId = InputProcessor.getUserId(req);
+        int limit = input.get("limit") != null ? ((Number) input.get("limit")).intValue() : DEFAULT_PAGE_SIZE;
+        limit = Math.max(1, Math.min(limit, MAX_PAGE_SIZE));
+        List<Object> params = new ArrayList<>();
 
         // SQL Query to join DMA_Assessment with MSME (to get company name)
         // and LEFT JOIN AnchorRecord (to see if it's been anchored)
-        String sql = "SELECT dma.\"assessmentId\", dma.\"msmeId\", dma.\"finalTsiScore\", dma.status, dma.\"completionDate\", " +
-                "m.\"companyName\", " +
+        StringBuilder sql = new StringBuilder("SELECT dma.\"assessmentId\", dma.\"msmeId\", dma.\"finalTsiScore\", dma.status, dma.\"completionDate\", " +
+                "m.\"companyName\", m.\"industrySector\", " +
                 "ar.\"blockchainTxId\" " +
                 "FROM \"dma_assessment\" dma " +
                 "JOIN \"msme\" m ON dma.\"msmeId\" = m.\"msmeId\" " +
                 "LEFT JOIN \"anchor_record\" ar ON dma.\"assessmentId\" = ar.\"anchorId\" " +
-                "WHERE dma.\"auditorId\" = ?";
-
-        try {
-            conn = pool.getConnection();
-            pstmt = conn.prepareStatement(sql);
-            pstmt.setLong(1, auditorId);
-            rs = pstmt.executeQuery();
-
-            while (rs.next()) {
-                JSONObject assessment = new JSONObject();
-
-                // Fields from DMA_Assessment and MSME
-                assessment.put("assessmentId", rs.getLong("assessmentId"));
-                assessment.put("msmeId", rs.getLong("msmeId"));
-                assessment.put("companyName", rs.getString("companyName"));
-                assessment.put("status", rs.getString("status"));
-
-                // Conditional Fields
-                assessment.put("finalTsiScore", rs.getObject("finalTsiScore") != null ? rs.getDouble("finalTsiScore") : null);
-                assessment.put("completionDate", rs.getTimestamp("completionDate") != null ? rs.getTimestamp("completionDate").toInstant().toString() : null);
-
-                // Anchor Status (from LEFT JOIN)
-                assessment.put("isAnchored", rs.getString("blockchainTxId") != null);
-
-                assessmentArray.add(assessment);
+                "WHERE dma.\"auditorId\" = ?");
+        params.add(auditorId);
+        if (input.get("status") != null) {
+            sql.append(" AND dma.status = ?");
+            params.add(input.get("status"));
+        }
+        if (input.get("industrySector") != null) {
+            sql.append(" AND m.\"industrySector\" = ?");
+            params.add(input.get("industrySector"));
+        }
+        if (input.get("minScore") != null) {
+            sql.append(" AND dma.\"finalTsiScore\" >= ?");
+            params.add(((Number) input.get("minScore")).doubleValue());
+        }
+        if (input.get("maxScore") != null) {
+            sql.append(" AND dma.\"finalTsiScore\" <= ?");
+            params.add(((Number) input.get("maxScore")).doubleValue());
+        }
+        if (input.get("cursor") != null) {
+            Object[] after = decodeListCursor((String) input.get("cursor"));
+            if (after == null) {
+                OutputProcessor.errorResponse(res, HttpServletResponse.SC_BAD_REQUEST, "Bad Request", "Invalid cursor.", req.getRequestURI());
+                return;
+            }
+            if (after[0] == null) {
+                // Still among the incomplete assessments, which come first; then every completed one
+                sql.append(" AND ((dma.\"completionDate\" IS NULL AND dma.\"assessmentId\" < ?) OR dma.\"completionDate\" IS NOT NULL)");
+                params.add(after[1]);
+            } else {
+                sql.append(" AND dma.\"completionDate\" IS NOT NULL AND (dma.\"completionDate\", dma.\"assessmentId\") < (?, ?)");
+                params.add(after[0]);
+                params.add(after[1]);
+            }
+        }
+        // Incomplete assessments (no completionDate) first, then newest first; one extra row tells whether there is a next page
+        sql.append(" ORDER BY dma.\"completionDate\" DESC NULLS FIRST, dma.\"assessmentId\" DESC LIMIT ?");
+        params.add(limit + 1);
+
+        final int pageSize = limit;
+        try (PoolDB pool = new PoolDB();
+             PreparedStatement pstmt = pool.getConnection().prepareStatement(sql.toString())) {
+            for (int i = 0; i < params.size(); i++) {
+                pstmt.setObject(i + 1, params.get(i));
             }
+            try (ResultSet rs = pstmt.executeQuery()) {
+                OutputProcessor.stream(res, HttpServletResponse.SC_OK, gen -> {
+                    gen.writeStartObject();
+                    gen.writeBooleanField("success", true);
+                    int rows = OutputProcessor.writeRows(gen, "data", rs, pageSize, (row, r) -> {
+                        // Fields from DMA_Assessment and MSME
+                        row.writeNumberField("assessmentId", r.getLong("assessmentId"));
+                        row.writeNumberField("msmeId", r.getLong("msmeId"));
+                        row.writeStringField("companyName", r.getString("companyName"));
+                        row.writeStringField("industrySector", r.getString("industrySector"));
+                        row.writeStringField("status", r.getString("status"));
+
+                        // Conditional Fields
+                        double score = r.getDouble("finalTsiScore");
+                        if (r.wasNull()) {
+                            row.writeNullField("finalTsiScore");
+                        } else {
+                            row.writeNumberField("finalTsiScore", score);
+                        }
+                        Timestamp completionDate = r.getTimestamp("completionDate");
+                        row.writeStringField("completionDate", completionDate != null ? completionDate.toInstant().toString() : null);
+
+                        // Anchor Status (from LEFT JOIN)
+                        row.writeBooleanField("isAnchored", r.getString("blockchainTxId") != null);
+                    });
+                    // rs is still on the last row sent; the extra row fetched past it means there is a next page
+                    String nextCursor = null;
+                    if (rows == pageSize) {
+                        Timestamp lastDate = rs.getTimestamp("completionDate");
+                        long lastId = rs.getLong("assessmentId");
+                        if (rs.next()) {
+                            nextCursor = encodeListCursor(lastDate, lastId);
+                        }
+                    }
+                    gen.writeStringField("nextCursor", nextCursor);
+                    gen.writeEndObject();
+                });
+            }
+        }
+    }
 
-            output.put("success", true);
-            output.put("data", assessmentArray);
+    // Keyset cursor for the assessment list: the (completionDate, assessmentId) of the last row sent,
+    // with an empty date when that assessment is not complete yet
+    private static String encodeListCursor(Timestamp completionDate, long assessmentId) {
+        String key = (completionDate != null ? completionDate.toInstant().toString() : "") + "|" + assessmentId;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(key.getBytes(StandardCharsets.UTF_8));
+    }
 
-        } finally {
-            pool.cleanup(rs, pstmt, conn);
+    private static Object[] decodeListCursor(String cursor) {
+        try {
+            String key = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            int sep = key.indexOf('|');
+            String date = key.substring(0, sep);
+            return new Object[] { date.isEmpty() ? null : Timestamp.from(Instant.parse(date)), Long.parseLong(key.substring(sep + 1)) };
+        } catch (RuntimeException e) {
+            return null;
         }
-        return output;
     }
 
     // ------------------------------------------
@@ -208,9 +314,15 @@ public class DMA implements Action {
         String sql = "";
         boolean isNewAssessment = (assessmentId == null || assessmentId.longValue() == 0L);
 
-        JSONObject template = SystemConfig.readJSONTemplate("/WEB-INF/assessments/dma-v1.json");
-        JSONObject results = eval(template, (JSONObject) assessmentDetailJson.get("results"));
-        finalTsiScore = (double)(int) results.get("score");
+        try {
+            ScoringModel model = ScoringModel.forTemplate(DMA_TEMPLATE);
+            finalTsiScore = (double) model.score(model.answers((JSONObject) assessmentDetailJson.get("results")));
+        } catch (IllegalArgumentException e) {
+            result.put("error", true);
+            result.put("status_code", (long) HttpServletResponse.SC_BAD_REQUEST);
+            result.put("error_message", e.getMessage());
+            return result;
+        }
         String jsonDetail = assessmentDetailJson.toJSONString();
         try {
             conn = pool.getConnection();
@@ -287,107 +399,55 @@ public class DMA implements Action {
     // Existing/Helper Functions (Moved/Simplified)
     // ------------------------------------------
 
-    private JSONObject eval(JSONObject template, JSONObject data){
-        JSONObject results = new JSONObject();
-        JSONArray sections = null;
-        String sectionTitle = null;
-        Iterator<JSONObject> sectionIt = null;
-        JSONObject sectionOb = null;
-        JSONArray questions = null;
-        Iterator<JSONObject> questionIt = null;
-        JSONObject questionOb = null;
-        String qid = null;
-        String value = null;
-        int valueInt = 0;
-        int score = 0;
-        int sectionScore = 0;
-        int sectionCount = 0;
-        float sectionAvg = 0f;
-        String assessmentType = null;
-        JSONArray strengths = new JSONArray();
-        JSONArray weaknesses = new JSONArray();
-
-        assessmentType = (String) template.get("assessment_type");
-        sections = (JSONArray) template.get("sections");
-        sectionIt = sections.iterator();
-        while(sectionIt.hasNext()){
-            sectionOb = (JSONObject) sectionIt.next();
-            sectionTitle = (String) sectionOb.get("sectionTitle");
-            questions = (JSONArray) sectionOb.get("questions");
-            questionIt = questions.iterator();
-            sectionScore = 0;sectionCount = 0;
-            while(questionIt.hasNext()){
-                questionOb = (JSONObject) questionIt.next();
-                qid = (String) questionOb.get("questionId");
-                valueInt =  (int)(long) data.get(qid);
-                score += valueInt;
-                sectionCount++;
-                sectionScore += valueInt;
-            }
-            sectionAvg = sectionScore/sectionCount;
-            if(sectionAvg>=4){
-                strengths.add(sectionTitle);
-            }else if(sectionAvg<=2){
-                weaknesses.add(sectionTitle);
-            }
-        }
-
-        if(score<=28){
-                results.put("rating",1);
-                results.put("rating_summary","Level 1: Nascent");
-                results.put("score",score);
-                results.put("description","The organisation has very limited digital adoption, largely relies on manual processes, and lacks a clear digital strategy. Digital tools, if used, are isolated and reactive. Awareness of digital potential is low.");
-                results.put("characteristics","Primarily offline, basic communication, no structured data, high manual effort, low digital skill set.");
-                results.put("strengths",strengths);
-                results.put("areas_for_improvement",weaknesses);
-                results.put("recommendation", "Focus on foundational digital literacy, basic online presence (GMB, social media), and initial digitization of core administrative tasks.");
-            }else if(score<=41){
-                results.put("rating",2);
-                results.put("rating_summary","Level 2: Emerging");
-                results.put("score",score);
-                results.put("description","The organisation has begun to adopt some digital tools, often in an uncoordinated manner. There's an awareness of digital benefits, but no cohesive strategy. Processes might be partially digitized.");
-                results.put("characteristics","Some online presence, basic use of digital communication, fragmented data, growing but inconsistent use of software.");
-                results.put("strengths",strengths);
-                results.put("areas_for_improvement",weaknesses);
-                results.put("recommendation", "Develop a simple digital roadmap, explore cloud tools for efficiency, establish basic cybersecurity, and offer introductory digital training.");
-            }else if(score<=54){
-                results.put("rating",3);
-                results.put("rating_summary","Level 3: Developing");
-                results.put("score",score);
-                results.put("description","The organisation is actively integrating digital tools into various aspects of its business. There's a nascent digital strategy, and some processes are becoming more efficient. Data collection exists but analysis might be limited.");
-                results.put("characteristics","Dedicated website, basic digital marketing, some internal collaboration tools, moderate digital skills, conscious of data.");
-                results.put("strengths",strengths);
-                results.put("areas_for_improvement",weaknesses);
-                results.put("recommendation", "Integrate existing digital tools, explore CRM/ERP Lite, implement structured digital marketing, and invest in targeted skill development.");
-            }else if(score<=67){
-                results.put("rating",4);
-                results.put("rating_summary","Level 4: Mature");
-                results.put("score",score);
-                results.put("description","The organisation leverages digital technologies strategically across most functions. They have a clear digital vision, data-driven decision-making is emerging, and cybersecurity is prioritized.");
-                results.put("characteristics","Strong online presence, active digital marketing, automated key processes, data-driven insights, proactive cybersecurity, good digital culture.");
-                results.put("strengths",strengths);
-                results.put("areas_for_improvement",weaknesses);
-                results.put("recommendation", "Optimize digital processes, explore advanced analytics, consider AI/automation pilot projects, and foster continuous digital innovation.");
-            }else{
-                results.put("rating",5);
-                results.put("rating_summary","Level 5: Advanced");
-                results.put("score",score);
-                results.put("description","The organisation is a digitally transformed entity, continuously innovating and leveraging technology to gain a competitive advantage. Digital is ingrained in its culture, strategy, and operations.");
-                results.put("characteristics","Digital-first approach, highly automated and integrated systems, advanced analytics, personalized customer experiences, robust cybersecurity, continuous digital learning and adaptation.");
-                results.put("strengths",strengths);
-                results.put("areas_for_improvement",weaknesses);
-                results.put("recommendation", " Explore disruptive technologies, engage in industry leadership, develop digital products/services, and benchmark against global best practices.");
+    /**
+     * Sends the DMA questionnaire structure for the requested version (e.g. "v1").
+     */
+    private void getQuestionnaire(HttpServletRequest req, HttpServletResponse res, JSONObject input) {
+        TemplateStore.Template template = TemplateStore.get("dma-" + input.get("version"));
+        if (template == null) {
+            OutputProcessor.errorResponse(res, HttpServletResponse.SC_NOT_FOUND, "Not Found", "Unknown questionnaire version.", req.getRequestURI());
+            return;
         }
-        return results;
+        OutputProcessor.send(res, HttpServletResponse.SC_OK, template.getResponseBody());
     }
 
     /**
-     * Retrieves the latest DMA questionnaire structure.
+     * The ETag of an anchored assessment's details, or null while the assessment is not
+     * anchored. It covers the anchored tsiHash and the MSME and auditor fields joined into
+     * the response, which can be edited after anchoring. Kept in memory for a minute, so
+     * most revalidations of an anchored record need no database access.
      */
-    private JSONObject getQuestionnaire() throws ParseException {
-        // Renamed from getQuestionnaireTemplate
-        JSONObject assessment = SystemConfig.readJSONTemplate("/WEB-INF/assessments/"+"dma"+"-"+"v1"+".json");
-        return new JSONObject() {{ put("success", true); put("data", assessment); }};
+    private String anchoredETag(HttpServletRequest req, JSONObject input) throws SQLException {
+        long assessmentId;
+        try {
+            assessmentId = Long.parseLong(String.valueOf(input.get("assessmentId")));
+        } catch (NumberFormatException e) {
+            return null; // The handler reports it
+        }
+        String etag = anchoredETags.get(assessmentId);
+        if (etag == null) {
+            String version = null;
+            try (PoolDB pool = new PoolDB();
+                 PreparedStatement pstmt = pool.getConnection().prepareStatement(SQL_ANCHORED_ETAG)) {
+                pstmt.setLong(1, assessmentId);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    if (rs.next()) {
+                        // Fields separated by NUL so that moving text from one to the next changes the ETag
+                        version = "dma:" + assessmentId + ":" + rs.getString("tsiHash") + '\u0000' + rs.getString("companyName") + '\u0000'
+                                + rs.getString("udyamRegistrationNo") + '\u0000' + rs.getString("email") + '\u0000' + rs.getString("linkedin");
+                    }
+                }
+            }
+            long now = System.currentTimeMillis();
+            if (version != null) {
+                etag = OutputProcessor.etagOf(version.getBytes(StandardCharsets.UTF_8));
+                anchoredETags.put(assessmentId, etag, now + ANCHORED_ETAG_TTL_MS);
+            } else {
+                etag = NOT_ANCHORED;
+                anchoredETags.put(assessmentId, etag, now + NOT_ANCHORED_TTL_MS);
+            }
+        }
+        return etag.isEmpty() ? null : etag;
     }
 
     /**
@@ -398,12 +458,16 @@ public class DMA implements Action {
         Connection conn = null;
         PreparedStatement pstmtAnchor = null;
         PreparedStatement pstmtUpdate = null;
+        ResultSet rs = null;
         PoolDB pool = new PoolDB();
 
         // 1. Insert into AnchorRecord
         String sqlAnchor = "INSERT INTO \"anchor_record\" (\"anchorId\", \"type\", \"blockchainTxId\", \"tsiHash\", \"anchorDate\", \"blockchainNetwork\") VALUES (?, ?, ?, ?, NOW(), 'TSI-Ledger')";
-        // 2. Update DMA_Assessment status
-        String sqlUpdate = "UPDATE \"dma_assessment\" SET status = 'ANCHORED' WHERE \"assessmentId\" = ?";
+        // 2. Update DMA_Assessment status, returning what the platform statistics and leaderboard need
+        String sqlUpdate = "UPDATE \"dma_assessment\" d SET status = 'ANCHORED' FROM \"msme\" m " +
+                "WHERE d.\"assessmentId\" = ? AND d.status <> 'ANCHORED' AND m.\"msmeId\" = d.\"msmeId\" " +
+                "RETURNING d.\"finalTsiScore\", m.\"companyName\", m.\"industrySector\"";
+        JSONObject anchored = null;
 
         try {
             conn = pool.getConnection();
@@ -417,7 +481,16 @@ public class DMA implements Action {
 
             pstmtUpdate = conn.prepareStatement(sqlUpdate);
             pstmtUpdate.setLong(1, assessmentId);
-            pstmtUpdate.executeUpdate();
+            rs = pstmtUpdate.executeQuery();
+
+            // 3. Count it in the platform statistics within the same transaction
+            if (rs.next()) {
+                PlatformStats.recordAnchored(conn, type, rs.getDouble("finalTsiScore"));
+                anchored = new JSONObject();
+                anchored.put("finalTsiScore", rs.getDouble("finalTsiScore"));
+                anchored.put("companyName", rs.getString("companyName"));
+                anchored.put("industrySector", rs.getString("industrySector"));
+            }
 
             conn.commit();
         } catch (SQLException e) {
@@ -425,7 +498,12 @@ public class DMA implements Action {
             throw e;
         } finally {
             pool.cleanup(null, pstmtAnchor, null);
-            pool.cleanup(null, pstmtUpdate, conn);
+            pool.cleanup(rs, pstmtUpdate, conn);
+        }
+        if (anchored != null) {
+            anchoredETags.remove(assessmentId); // Drop the not-anchored marker so the ETag applies at once
+            Leaderboard.onAnchored(assessmentId, (Double) anchored.get("finalTsiScore"),
+                    (String) anchored.get("companyName"), (String) anchored.get("industrySector"), txId);
         }
         return new JSONObject() {{ put("success", true);}};
     }
@@ -543,6 +621,7 @@ public class DMA implements Action {
         JSONObject result =  new JSONObject();
         try {
             result = new BSVUtil().validateAssessment(txId, tsiHash);
+            PlatformStats.recordVerification();
         }catch(Exception e){
             result.put("failed",true);
         }
@@ -0,0 +1,238 @@
+package org.tsicoop.ratings.service.v1;
+
+import org.tsicoop.ratings.framework.PoolDB;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * In-memory ranking of anchored assessments by score, overall and per industry sector.
+ * Entries are kept in skip lists ordered by score then assessmentId (both descending),
+ * so top-K and every following page are a walk from a keyset cursor rather than a sort.
+ * The index is loaded from the database on first use, updated in place when this
+ * instance anchors an assessment, and reloaded periodically to pick up other instances.
+ *
+ * Updates never wait for a reload. Each one is applied to whichever index is current and
+ * also queued; a reload replays the queue into the new index once it is in place, so an
+ * update that landed on the index being replaced is carried over.
+ */
+public class Leaderboard {
+
+    public static final int MAX_PAGE_SIZE = 100;
+
+    private static final long REFRESH_MS = 300000; // 5 minutes
+    // Entries added in memory this recently survive a reload that may have read a lagging replica
+    private static final long RECENT_MS = 60000;
+
+    private static final String SQL_LOAD = "SELECT d.\"assessmentId\", d.\"finalTsiScore\", m.\"companyName\", m.\"industrySector\", ar.\"blockchainTxId\" " +
+            "FROM \"dma_assessment\" d JOIN \"msme\" m ON d.\"msmeId\" = m.\"msmeId\" " +
+            "LEFT JOIN \"anchor_record\" ar ON d.\"assessmentId\" = ar.\"anchorId\" " +
+            "WHERE d.status = 'ANCHORED'";
+
+    private static final Comparator<Entry> RANKING = (a, b) -> {
+        int byScore = Double.compare(b.score, a.score);
+        return byScore != 0 ? byScore : Long.compare(b.assessmentId, a.assessmentId);
+    };
+
+    private static class Entry {
+        final long assessmentId;
+        final double score;
+        final String msmeName;
+        final String sector;
+        final String txId;
+        final long addedAt;
+
+        Entry(long assessmentId, double score, String msmeName, String sector, String txId, long addedAt) {
+            this.assessmentId = assessmentId;
+            this.score = score;
+            this.msmeName = msmeName;
+            this.sector = sector;
+            this.txId = txId;
+            this.addedAt = addedAt;
+        }
+
+        JSONObject toJSON() {
+            JSONObject json = new JSONObject();
+            json.put("assessmentId", assessmentId);
+            json.put("finalTsiScore", score);
+            json.put("msmeName", msmeName);
+            json.put("industry", sector);
+            json.put("blockchainTxId", txId);
+            return json;
+        }
+    }
+
+    private static class Index {
+        final NavigableSet<Entry> all = new ConcurrentSkipListSet<>(RANKING);
+        final Map<String, NavigableSet<Entry>> bySector = new ConcurrentHashMap<>();
+        final Map<Long, Entry> byId = new ConcurrentHashMap<>();
+        final long loadedAt = System.currentTimeMillis();
+
+        void add(Entry entry) {
+            Entry previous = byId.put(entry.assessmentId, entry);
+            if (previous != null) {
+                all.remove(previous);
+                NavigableSet<Entry> sector = bySector.get(sectorKey(previous.sector));
+                if (sector != null) {
+                    sector.remove(previous);
+                }
+            }
+            all.add(entry);
+            bySector.computeIfAbsent(sectorKey(entry.sector), k -> new ConcurrentSkipListSet<>(RANKING)).add(entry);
+        }
+    }
+
+    private static volatile Index index = null;
+    // Serializes loads only; updates do not take it
+    private static final ReentrantLock lock = new ReentrantLock();
+    // Updates made in this instance within about RECENT_MS, oldest first
+    private static final Queue<Entry> recent = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Adds a newly anchored assessment. Call after the anchoring transaction has committed.
+     */
+    public static void onAnchored(long assessmentId, double score, String msmeName, String sector, String txId) {
+        Entry entry = new Entry(assessmentId, score, msmeName, sector, txId, System.currentTimeMillis());
+        // Queued before reading the index: either a reload still to swap in replays it, or this sees the new index
+        recent.add(entry);
+        // Also pruned here, in case no reload runs; kept twice as long so a reload under way can still replay them
+        Entry oldest;
+        while ((oldest = recent.peek()) != null && oldest.addedAt < entry.addedAt - 2 * RECENT_MS) {
+            recent.remove(oldest);
+        }
+        Index current = index;
+        if (current != null) {
+            current.add(entry);
+        }
+    }
+
+    /**
+     * One page of the ranking, optionally limited to a sector. The cursor is the nextCursor
+     * of the previous page, or null for the first page.
+     */
+    public static JSONObject page(String sector, int limit, String cursor) throws SQLException {
+        Index current = current();
+        NavigableSet<Entry> ranking = sector == null ? current.all : current.bySector.get(sectorKey(sector));
+        JSONArray items = new JSONArray();
+        String nextCursor = null;
+        if (ranking != null) {
+            Entry after = decodeCursor(cursor);
+            Iterator<Entry> it = (after == null ? ranking : ranking.tailSet(after, false)).iterator();
+            Entry last = null;
+            int size = Math.max(1, Math.min(limit, MAX_PAGE_SIZE));
+            while (items.size() < size && it.hasNext()) {
+                last = it.next();
+                items.add(last.toJSON());
+            }
+            if (last != null && it.hasNext()) {
+                nextCursor = last.score + ":" + last.assessmentId;
+            }
+        }
+        JSONObject output = new JSONObject();
+        output.put("success", true);
+        output.put("data", items);
+        output.put("nextCursor", nextCursor);
+        return output;
+    }
+
+    public static JSONArray top(int limit) throws SQLException {
+        return (JSONArray) page(null, limit, null).get("data");
+    }
+
+    private static Entry decodeCursor(String cursor) {
+        if (cursor == null || cursor.isEmpty()) {
+            return null;
+        }
+        int sep = cursor.lastIndexOf(':');
+        try {
+            return new Entry(Long.parseLong(cursor.substring(sep + 1)), Double.parseDouble(cursor.substring(0, sep)), null, null, null, 0);
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Invalid cursor: " + cursor);
+        }
+    }
+
+    private static String sectorKey(String sector) {
+        return sector == null ? "" : sector.trim().toLowerCase();
+    }
+
+    // Only the caller that finds the index stale waits for the reload; everyone else keeps reading the previous one
+    private static Index current() throws SQLException {
+        Index current = index;
+        if (current == null) {
+            lock.lock();
+            try {
+                if (index == null) {
+                    swapIn(load());
+                }
+                return index;
+            } finally {
+                lock.unlock();
+            }
+        }
+        if (System.currentTimeMillis() - current.loadedAt > REFRESH_MS && lock.tryLock()) {
+            try {
+                if (index == current) {
+                    swapIn(load());
+                }
+            } catch (SQLException e) {
+                System.err.println("Error refreshing leaderboard, serving previous ranking: " + e.getMessage());
+            } finally {
+                lock.unlock();
+            }
+        }
+        return index;
+    }
+
+    private static Index load() throws SQLException {
+        Index loaded = new Index();
+        try (PoolDB pool = new PoolDB()) {
+            Connection conn = pool.getConnection();
+            try (PreparedStatement pstmt = conn.prepareStatement(SQL_LOAD)) {
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        loaded.add(new Entry(rs.getLong("assessmentId"), rs.getDouble("finalTsiScore"),
+                                rs.getString("companyName"), rs.getString("industrySector"), rs.getString("blockchainTxId"), 0));
+                    }
+                }
+            }
+        }
+        return loaded;
+    }
+
+    // Makes a freshly loaded index current, then replays recent updates it may not have read (e.g. from a lagging replica)
+    private static void swapIn(Index loaded) {
+        index = loaded;
+        long cutoff = loaded.loadedAt - RECENT_MS;
+        for (Iterator<Entry> it = recent.iterator(); it.hasNext(); ) {
+            Entry entry = it.next();
+            if (entry.addedAt < cutoff) {
+                it.remove();
+            } else if (!loaded.byId.containsKey(entry.assessmentId)) {
+                loaded.add(entry);
+            }
+        }
+    }
+
+    public static JSONObject getStats() {
+        Index current = index;
+        JSONObject stats = new JSONObject();
+        stats.put("loaded", current != null);
+        stats.put("entries", current != null ? current.all.size() : 0);
+        stats.put("sectors", current != null ? current.bySector.size() : 0);
+        stats.put("age_ms", current != null ? System.currentTimeMillis() - current.loadedAt : 0);
+        return stats;
+    }
+}
@@ -0,0 +1,35 @@
+package org.tsicoop.ratings.service.v1;
+
+import org.tsicoop.ratings.framework.*;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.json.simple.JSONObject;
+
+/**
+ * MetricsService exposes the runtime metrics collected by the framework
+ * (per-function latency, schema timings and the sections added by other components).
+ * Restricted to admin users.
+ */
+public class Metrics implements Action {
+
+    private static final String ADMIN_ROLE = "admin";
+
+    @Override
+    public void register(FunctionRegistry registry) {
+        registry.register("get_metrics", (req, res, input) -> {
+            if (!ADMIN_ROLE.equalsIgnoreCase(InputProcessor.getRole(req))) {
+                throw new SecurityException("Access Denied.");
+            }
+            OutputProcessor.send(res, HttpServletResponse.SC_OK, new JSONObject() {{ put("success", true); put("data", MetricsRegistry.snapshot()); }});
+        }).alwaysServe(); // Operators need metrics most while load is being shed
+    }
+
+    @Override
+    public boolean validate(String method, HttpServletRequest req, HttpServletResponse res) {
+        if (!"POST".equalsIgnoreCase(method)) {
+            OutputProcessor.errorResponse(res, HttpServletResponse.SC_METHOD_NOT_ALLOWED, "Method Not Allowed", "Only POST method is supported.", req.getRequestURI());
+            return false;
+        }
+        return InputProcessor.validate(req, res);
+    }
+}
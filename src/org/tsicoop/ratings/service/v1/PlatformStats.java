@@ -0,0 +1,103 @@
+package org.tsicoop.ratings.service.v1;
+
+import org.tsicoop.ratings.framework.MultiQuery;
+import org.tsicoop.ratings.framework.PoolDB;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * Platform-wide rating statistics, maintained incrementally in the platform_stats and
+ * verification_stats tables so the partner dashboard reads a single row instead of
+ * aggregating over every assessment.
+ */
+public class PlatformStats {
+
+    // Scores are bucketed by 10 points; the last bucket also holds everything above it
+    private static final int BUCKET_WIDTH = 10;
+    private static final int BUCKETS = 10;
+
+    private static final String SQL_ANCHORED = "UPDATE \"platform_stats\" SET \"anchoredCount\" = \"anchoredCount\" + 1, " +
+            "\"anchoredScoreSum\" = \"anchoredScoreSum\" + ?, " +
+            "\"scoreHistogram\"[?] = \"scoreHistogram\"[?] + 1, \"updatedAt\" = NOW() " +
+            "WHERE \"type\" = ?";
+
+    private static final String SQL_VERIFIED = "INSERT INTO \"verification_stats\" (\"month\", \"verifications\") " +
+            "VALUES (date_trunc('month', NOW())::date, 1) " +
+            "ON CONFLICT (\"month\") DO UPDATE SET \"verifications\" = \"verification_stats\".\"verifications\" + 1";
+
+    private static final String SQL_LOAD = "SELECT ps.\"anchoredCount\", ps.\"anchoredScoreSum\", ps.\"scoreHistogram\", " +
+            "COALESCE(vs.\"verifications\", 0) AS verifications " +
+            "FROM \"platform_stats\" ps " +
+            "LEFT JOIN \"verification_stats\" vs ON vs.\"month\" = date_trunc('month', NOW())::date " +
+            "WHERE ps.\"type\" = ?";
+
+    /**
+     * Counts a newly anchored assessment. Runs on the caller's connection so the counters
+     * commit or roll back together with the anchor record.
+     */
+    public static void recordAnchored(Connection conn, String type, double score) throws SQLException {
+        int bucket = Math.max(0, Math.min(BUCKETS - 1, (int) (score / BUCKET_WIDTH))) + 1; // SQL arrays are 1-based
+        try (PreparedStatement pstmt = conn.prepareStatement(SQL_ANCHORED)) {
+            pstmt.setDouble(1, score);
+            pstmt.setInt(2, bucket);
+            pstmt.setInt(3, bucket);
+            pstmt.setString(4, type);
+            pstmt.executeUpdate();
+        }
+    }
+
+    /**
+     * Counts a verification against the current month. A failure here is logged and does
+     * not affect the verification result.
+     */
+    public static void recordVerification() {
+        try (PoolDB pool = new PoolDB();
+             PreparedStatement pstmt = pool.getConnection().prepareStatement(SQL_VERIFIED)) {
+            pstmt.executeUpdate();
+        } catch (SQLException e) {
+            System.err.println("Error recording verification: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Adds the summary for one assessment type (anchored count, average score, score
+     * distribution and verifications this month) to a dashboard's MultiQuery.
+     * The result is put under "summary".
+     */
+    public static MultiQuery query(MultiQuery query, String type, JSONObject output) {
+        return query.add(SQL_LOAD, rs -> {
+            long count = 0;
+            double sum = 0.0;
+            long verifications = 0;
+            Long[] histogram = new Long[0];
+            if (rs.next()) {
+                count = rs.getLong("anchoredCount");
+                sum = rs.getDouble("anchoredScoreSum");
+                verifications = rs.getLong("verifications");
+                Array array = rs.getArray("scoreHistogram");
+                if (array != null) {
+                    histogram = (Long[]) array.getArray();
+                }
+            }
+            JSONArray distribution = new JSONArray();
+            for (int i = 0; i < histogram.length; i++) {
+                JSONObject bucket = new JSONObject();
+                int from = i * BUCKET_WIDTH;
+                bucket.put("range", i == histogram.length - 1 ? from + "+" : from + "-" + (from + BUCKET_WIDTH - 1));
+                bucket.put("count", histogram[i] != null ? histogram[i] : 0L);
+                distribution.add(bucket);
+            }
+            JSONObject summary = new JSONObject();
+            summary.put("totalAnchoredScores", count);
+            summary.put("platformAvgTsiScore", count > 0 ? sum / count : 0.0);
+            summary.put("scoreDistribution", distribution);
+            summary.put("verificationsThisMonth", verifications);
+            output.put("summary", summary);
+        }, type);
+    }
+}
@@ -0,0 +1,301 @@
+package org.tsicoop.ratings.service.v1;
+
+import org.tsicoop.ratings.framework.BatchDB;
+import org.tsicoop.ratings.framework.PoolDB;
+import org.tsicoop.ratings.framework.SystemConfig;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Re-scores every stored assessment against a template, for when the template's scoring
+ * changes or a new version ships. Runs as one background job at a time:
+ *
+ *   - rows are read in assessmentId order through a server-side cursor on a dedicated
+ *     connection, batchSize at a time, so memory stays flat however large the table is;
+ *   - each batch is scored in parallel on a ForkJoinPool using the compiled ScoringModel;
+ *   - changed scores are written with one JDBC batch per batch of rows, in the same
+ *     transaction as the checkpoint (the last assessmentId done) in rescore_checkpoint.
+ *
+ * A job that stops part way (failure or restart of the service) resumes from its
+ * checkpoint when started again for the same template. ANCHORED assessments are never
+ * changed: their score is what was anchored on the ledger. A row saved by an auditor while
+ * the job runs is left alone, since saving scores it again anyway.
+ */
+@SuppressWarnings("unchecked")
+public class Rescore {
+
+    public static final int DEFAULT_BATCH_SIZE = 500;
+
+    private static final String SQL_SELECT = "SELECT \"assessmentId\", \"finalTsiScore\", \"completionDate\", \"assessmentDetailJson\"::text AS detail " +
+            "FROM \"dma_assessment\" WHERE status <> 'ANCHORED' AND \"assessmentId\" > ? ORDER BY \"assessmentId\"";
+
+    // Only if the row is unchanged since it was read
+    private static final String SQL_UPDATE = "UPDATE \"dma_assessment\" SET \"finalTsiScore\" = ? " +
+            "WHERE \"assessmentId\" = ? AND status <> 'ANCHORED' AND \"completionDate\" IS NOT DISTINCT FROM ?";
+
+    private static final String SQL_LOAD_CHECKPOINT = "SELECT \"lastAssessmentId\", \"processed\", \"updated\", \"failed\", \"completedAt\" " +
+            "FROM \"rescore_checkpoint\" WHERE \"template\" = ?";
+
+    private static final String SQL_SAVE_CHECKPOINT = "INSERT INTO \"rescore_checkpoint\" (\"template\", \"lastAssessmentId\", \"processed\", \"updated\", \"failed\", \"startedAt\", \"updatedAt\", \"completedAt\") " +
+            "VALUES (?, ?, ?, ?, ?, NOW(), NOW(), ?) " +
+            "ON CONFLICT (\"template\") DO UPDATE SET \"lastAssessmentId\" = EXCLUDED.\"lastAssessmentId\", \"processed\" = EXCLUDED.\"processed\", " +
+            "\"updated\" = EXCLUDED.\"updated\", \"failed\" = EXCLUDED.\"failed\", \"updatedAt\" = NOW(), \"completedAt\" = EXCLUDED.\"completedAt\", " +
+            "\"startedAt\" = CASE WHEN EXCLUDED.\"lastAssessmentId\" = 0 THEN NOW() ELSE \"rescore_checkpoint\".\"startedAt\" END";
+
+    private static final int NO_SCORE = Integer.MIN_VALUE;
+
+    private static class Row {
+        final long assessmentId;
+        final double finalTsiScore;
+        final boolean hasScore;
+        final Timestamp completionDate;
+        final String detail;
+        int score = NO_SCORE;
+
+        Row(long assessmentId, double finalTsiScore, boolean hasScore, Timestamp completionDate, String detail) {
+            this.assessmentId = assessmentId;
+            this.finalTsiScore = finalTsiScore;
+            this.hasScore = hasScore;
+            this.completionDate = completionDate;
+            this.detail = detail;
+        }
+    }
+
+    private static class Job implements Runnable {
+        final String template;
+        final String templatePath;
+        final int batchSize;
+        final boolean restart;
+
+        volatile String state = "STARTING";
+        volatile String error = null;
+        volatile long lastAssessmentId = 0;
+        volatile long processed = 0;
+        volatile long updated = 0;
+        volatile long failed = 0;
+        volatile long processedThisRun = 0;
+        volatile long startedAt = System.currentTimeMillis();
+        volatile long finishedAt = 0;
+        volatile double lastBatchRowsPerSec = 0.0;
+
+        Job(String template, int batchSize, boolean restart) {
+            this.template = template;
+            this.templatePath = "/WEB-INF/assessments/" + template + ".json";
+            this.batchSize = batchSize;
+            this.restart = restart;
+        }
+
+        @Override
+        public void run() {
+            ForkJoinPool workers = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+            try {
+                ScoringModel model = ScoringModel.forTemplate(templatePath);
+                if (restart || !resumeFromCheckpoint()) {
+                    begin();
+                }
+                state = "RUNNING";
+                System.out.println("Rescoring assessments against " + template + " from assessmentId " + lastAssessmentId);
+                scan(model, workers);
+                complete();
+                state = "COMPLETED";
+            } catch (Exception e) {
+                error = e.getMessage();
+                state = "FAILED";
+                System.err.println("Rescoring against " + template + " failed at assessmentId " + lastAssessmentId + ": " + e.getMessage());
+            } finally {
+                workers.shutdown();
+                finishedAt = System.currentTimeMillis();
+                System.out.println("Rescoring against " + template + " " + state.toLowerCase() + ": " + processed + " processed, " +
+                        updated + " updated, " + failed + " failed, " + String.format("%.1f", rowsPerSec()) + " rows/sec");
+            }
+        }
+
+        private void scan(ScoringModel model, ForkJoinPool workers) throws Exception {
+            BatchDB reader = new BatchDB(SystemConfig.getAppConfig());
+            Connection conn = reader.getConnection();
+            PreparedStatement pstmt = null;
+            ResultSet rs = null;
+            try {
+                // The driver only uses a server-side cursor outside autocommit and with a fetch size
+                conn.setAutoCommit(false);
+                conn.setReadOnly(true);
+                pstmt = conn.prepareStatement(SQL_SELECT);
+                pstmt.setFetchSize(batchSize);
+                pstmt.setLong(1, lastAssessmentId);
+                rs = pstmt.executeQuery();
+                List<Row> batch = new ArrayList<>(batchSize);
+                while (true) {
+                    batch.clear();
+                    while (batch.size() < batchSize && rs.next()) {
+                        double score = rs.getDouble("finalTsiScore");
+                        batch.add(new Row(rs.getLong("assessmentId"), score, !rs.wasNull(), rs.getTimestamp("completionDate"), rs.getString("detail")));
+                    }
+                    if (batch.isEmpty()) {
+                        break;
+                    }
+                    long start = System.nanoTime();
+                    workers.submit(() -> IntStream.range(0, batch.size()).parallel().forEach(i -> score(model, batch.get(i)))).get();
+                    write(batch);
+                    lastBatchRowsPerSec = batch.size() / Math.max((System.nanoTime() - start) / 1e9, 1e-9);
+                }
+                conn.commit();
+            } finally {
+                reader.cleanup(rs, pstmt, conn);
+            }
+        }
+
+        private static void score(ScoringModel model, Row row) {
+            try {
+                JSONObject detail = (JSONObject) new JSONParser().parse(row.detail);
+                row.score = model.score(model.answers((JSONObject) detail.get("results")));
+            } catch (Exception e) {
+                System.err.println("Cannot rescore assessment " + row.assessmentId + ": " + e.getMessage());
+            }
+        }
+
+        // Writes the changed scores and the checkpoint in one transaction
+        private void write(List<Row> batch) throws SQLException {
+            long batchFailed = 0;
+            for (Row row : batch) {
+                if (row.score == NO_SCORE) {
+                    batchFailed++;
+                }
+            }
+            long last = batch.get(batch.size() - 1).assessmentId;
+            long failedTotal = failed + batchFailed;
+            long processedTotal = processed + batch.size();
+            try (PoolDB pool = new PoolDB()) {
+                long changed = pool.transaction(conn -> {
+                    long rows = 0;
+                    try (PreparedStatement pstmt = conn.prepareStatement(SQL_UPDATE)) {
+                        for (Row row : batch) {
+                            if (row.score != NO_SCORE && (!row.hasScore || row.finalTsiScore != row.score)) {
+                                pstmt.setDouble(1, row.score);
+                                pstmt.setLong(2, row.assessmentId);
+                                pstmt.setTimestamp(3, row.completionDate);
+                                pstmt.addBatch();
+                            }
+                        }
+                        for (int count : pstmt.executeBatch()) {
+                            if (count > 0 || count == Statement.SUCCESS_NO_INFO) {
+                                rows++;
+                            }
+                        }
+                    }
+                    saveCheckpoint(conn, last, processedTotal, updated + rows, failedTotal, false);
+                    return rows;
+                });
+                updated += changed;
+            }
+            lastAssessmentId = last;
+            processed = processedTotal;
+            processedThisRun += batch.size();
+            failed = failedTotal;
+        }
+
+        // Returns false if there is no unfinished run to resume
+        private boolean resumeFromCheckpoint() throws SQLException {
+            try (PoolDB pool = new PoolDB();
+                 PreparedStatement pstmt = pool.getConnection().prepareStatement(SQL_LOAD_CHECKPOINT)) {
+                pstmt.setString(1, template);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    if (rs.next() && rs.getTimestamp("completedAt") == null) {
+                        lastAssessmentId = rs.getLong("lastAssessmentId");
+                        processed = rs.getLong("processed");
+                        updated = rs.getLong("updated");
+                        failed = rs.getLong("failed");
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        private void begin() throws SQLException {
+            try (PoolDB pool = new PoolDB()) {
+                saveCheckpoint(pool.getConnection(), 0, 0, 0, 0, false);
+            }
+        }
+
+        private void saveCheckpoint(Connection conn, long last, long processedTotal, long updatedTotal, long failedTotal, boolean completed) throws SQLException {
+            try (PreparedStatement pstmt = conn.prepareStatement(SQL_SAVE_CHECKPOINT)) {
+                pstmt.setString(1, template);
+                pstmt.setLong(2, last);
+                pstmt.setLong(3, processedTotal);
+                pstmt.setLong(4, updatedTotal);
+                pstmt.setLong(5, failedTotal);
+                pstmt.setTimestamp(6, completed ? new Timestamp(System.currentTimeMillis()) : null);
+                pstmt.executeUpdate();
+            }
+        }
+
+        private void complete() throws SQLException {
+            try (PoolDB pool = new PoolDB()) {
+                saveCheckpoint(pool.getConnection(), lastAssessmentId, processed, updated, failed, true);
+            }
+        }
+
+        double rowsPerSec() {
+            long end = finishedAt > 0 ? finishedAt : System.currentTimeMillis();
+            return processedThisRun / Math.max((end - startedAt) / 1000.0, 0.001);
+        }
+
+        JSONObject toJSON() {
+            JSONObject json = new JSONObject();
+            json.put("template", template);
+            json.put("state", state);
+            json.put("batch_size", batchSize);
+            json.put("last_assessment_id", lastAssessmentId);
+            json.put("processed", processed);
+            json.put("updated", updated);
+            json.put("failed", failed);
+            json.put("rows_per_sec", rowsPerSec());
+            json.put("last_batch_rows_per_sec", lastBatchRowsPerSec);
+            json.put("elapsed_ms", (finishedAt > 0 ? finishedAt : System.currentTimeMillis()) - startedAt);
+            if (error != null) {
+                json.put("error", error);
+            }
+            return json;
+        }
+    }
+
+    private static volatile Job job = null;
+
+    /**
+     * Starts re-scoring against a template (e.g. "dma-v1") in the background. Resumes an
+     * unfinished run for the same template unless restart is set. Returns false if a job
+     * is already running.
+     */
+    public static synchronized boolean start(String template, int batchSize, boolean restart) {
+        Job current = job;
+        if (current != null && current.finishedAt == 0) {
+            return false;
+        }
+        job = new Job(template, batchSize, restart);
+        Thread thread = new Thread(job, "tsi-rescore");
+        thread.setDaemon(true);
+        thread.start();
+        return true;
+    }
+
+    public static JSONObject getStats() {
+        Job current = job;
+        if (current == null) {
+            JSONObject stats = new JSONObject();
+            stats.put("state", "IDLE");
+            return stats;
+        }
+        return current.toJSON();
+    }
+}
@@ -0,0 +1,83 @@
+package org.tsicoop.ratings.service.v1;
+
+import org.tsicoop.ratings.framework.SystemConfig;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An assessment template (e.g. /WEB-INF/assessments/dma-v1.json) compiled for scoring:
+ * its question ids flattened into one array in template order, so that scoring a set of
+ * answers is a walk over that array rather than over the template's sections. A new
+ * assessment type or version is scored by adding its template. Models are immutable and
+ * compiled once per template.
+ */
+public class ScoringModel {
+
+    private static final Map<String, ScoringModel> models = new ConcurrentHashMap<>();
+
+    private final String[] questionIds;
+
+    private ScoringModel(String[] questionIds) {
+        this.questionIds = questionIds;
+    }
+
+    /**
+     * The compiled model for a template path such as /WEB-INF/assessments/dma-v1.json.
+     */
+    public static ScoringModel forTemplate(String templatePath) {
+        return models.computeIfAbsent(templatePath, path -> compile(SystemConfig.readJSONTemplate(path)));
+    }
+
+    public static ScoringModel compile(JSONObject template) {
+        JSONArray sections = (JSONArray) template.get("sections");
+        if (sections == null || sections.isEmpty()) {
+            throw new IllegalArgumentException("Template has no sections");
+        }
+        int questionCount = 0;
+        for (Object section : sections) {
+            JSONArray questions = (JSONArray) ((JSONObject) section).get("questions");
+            if (questions == null || questions.isEmpty()) {
+                throw new IllegalArgumentException("Section " + ((JSONObject) section).get("sectionId") + " has no questions");
+            }
+            questionCount += questions.size();
+        }
+        String[] questionIds = new String[questionCount];
+        int q = 0;
+        for (Object section : sections) {
+            for (Object question : (JSONArray) ((JSONObject) section).get("questions")) {
+                questionIds[q++] = (String) ((JSONObject) question).get("questionId");
+            }
+        }
+        return new ScoringModel(questionIds);
+    }
+
+    /**
+     * Reads the answers (questionId to option value) in template order. A missing or
+     * non-numeric answer is an IllegalArgumentException.
+     */
+    public int[] answers(JSONObject data) {
+        if (data == null) {
+            throw new IllegalArgumentException("Assessment results are required.");
+        }
+        int[] answers = new int[questionIds.length];
+        for (int i = 0; i < questionIds.length; i++) {
+            Object value = data.get(questionIds[i]);
+            if (!(value instanceof Number)) {
+                throw new IllegalArgumentException("Missing answer for question " + questionIds[i] + ".");
+            }
+            answers[i] = ((Number) value).intValue();
+        }
+        return answers;
+    }
+
+    public int score(int[] answers) {
+        int score = 0;
+        for (int answer : answers) {
+            score += answer;
+        }
+        return score;
+    }
+}
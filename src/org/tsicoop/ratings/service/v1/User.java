@@ -4,9 +4,7 @@ import org.json.simple.parser.JSONParser;
 import org.tsicoop.ratings.framework.*;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
-import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
-import org.json.simple.parser.ParseException;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
@@ -33,196 +31,183 @@ public class User implements Action {
     private static final Pattern EMAIL_PATTERN =
             Pattern.compile("^[a-zA-Z0-9._%+-]+@[a-zA-Z0-9.-]+\\.[a-zA-Z]{2,6}$");
 
+    // Chosen by framework.otp.store when the routing table is built
+    private static volatile OtpStore otpStore = null;
+
     /**
-     * Handles all User and Role Management operations via a single POST endpoint.
+     * Registers a handler for each User and Role Management operation.
+     * OTP login and registration are public; everything else requires a token.
      */
     @Override
-    public void post(HttpServletRequest req, HttpServletResponse res) {
-        JSONObject input = null;
-        JSONObject output = null;
-        JSONArray outputArray = null;
-
-        try {
-            input = InputProcessor.getInput(req);
-            String func = (String) input.get("_func");
-
-            if (func == null || func.trim().isEmpty()) {
-                OutputProcessor.errorResponse(res, HttpServletResponse.SC_BAD_REQUEST, "Bad Request", "Missing required '_func' attribute in input JSON.", req.getRequestURI());
-                return;
-            }
+    public void register(FunctionRegistry registry) {
+        otpStore = OtpStore.fromConfig();
+        MetricsRegistry.register("otp", () -> otpStore.getStats());
+
+        // Public, so limited per caller: each OTP request sends an email, each login tries a code
+        registry.register("request_otp", this::requestOtp).auth(ApiFunction.Auth.PUBLIC).rateLimit(5, 3);
+        registry.register("login_otp", this::loginOtp).auth(ApiFunction.Auth.PUBLIC).rateLimit(10, 5);
+        registry.register("register_user", this::registerUser).auth(ApiFunction.Auth.PUBLIC).rateLimit(10, 5);
+        registry.register("get_msme_by_email", (req, res, input) ->
+                OutputProcessor.send(res, HttpServletResponse.SC_OK, getMsmeDetailsByEmail((String) input.get("email"))));
+
+        // --- Other Admin/User Functions (Placeholders) ---
+        registry.register("list_users", notImplemented("list_users"));
+        registry.register("get_user", notImplemented("get_user"));
+        registry.register("update_user", notImplemented("update_user"));
+        registry.register("delete_user", notImplemented("delete_user"));
+    }
 
-            // Extract IDs if present in input for specific operations
-            Long userId = null;
-            Object userIdObj = input.get("user_id");
-            if (userIdObj != null) {
-                try {
-                    userId = Long.parseLong(userIdObj.toString());
-                } catch (NumberFormatException e) {
-                    OutputProcessor.errorResponse(res, HttpServletResponse.SC_BAD_REQUEST, "Bad Request", "Invalid 'user_id' format (must be a number).", req.getRequestURI());
-                    return;
-                }
-            }
+    /**
+     * Step 1: OTP Request
+     */
+    private void requestOtp(HttpServletRequest req, HttpServletResponse res, JSONObject input) throws SQLException {
+        String otpEmail = (String) input.get("email");
 
-            String role = (String) input.get("role");
+        if (otpEmail == null || otpEmail.isEmpty()) {
+            OutputProcessor.errorResponse(res, HttpServletResponse.SC_BAD_REQUEST, "Bad Request", "Email is required to request OTP.", req.getRequestURI());
+            return;
+        }
+        if (!EMAIL_PATTERN.matcher(otpEmail).matches()) {
+            OutputProcessor.errorResponse(res, HttpServletResponse.SC_BAD_REQUEST, "Bad Request", "Invalid email format.", req.getRequestURI());
+            return;
+        }
 
-            switch (func.toLowerCase()) {
-                // --- Step 1: OTP Request ---
-                case "request_otp":
-                    String otpEmail = (String) input.get("email");
+        JSONObject output = handleOtpRequest(otpEmail);
+        //System.out.println(output);
+        sendResult(req, res, HttpServletResponse.SC_OK, output);
+    }
 
-                    if (otpEmail == null || otpEmail.isEmpty()) {
-                        OutputProcessor.errorResponse(res, HttpServletResponse.SC_BAD_REQUEST, "Bad Request", "Email is required to request OTP.", req.getRequestURI());
-                        return;
-                    }
-                    if (!EMAIL_PATTERN.matcher(otpEmail).matches()) {
-                        OutputProcessor.errorResponse(res, HttpServletResponse.SC_BAD_REQUEST, "Bad Request", "Invalid email format.", req.getRequestURI());
-                        return;
-                    }
+    /**
+     * Step 2: OTP Login
+     */
+    private void loginOtp(HttpServletRequest req, HttpServletResponse res, JSONObject input) throws SQLException {
+        String loginEmail = (String) input.get("email");
+        String otp = (String) input.get("otp");
 
-                    output = handleOtpRequest(otpEmail);
-                    //System.out.println(output);
-                    if (output.containsKey("error")) {
-                        int statusCode = ((Long) output.get("status_code")).intValue();
-                        OutputProcessor.errorResponse(res, statusCode, (String) output.get("error_message"), (String) output.get("error_details"), req.getRequestURI());
-                    } else {
-                        OutputProcessor.send(res, HttpServletResponse.SC_OK, output);
-                    }
-                    break;
+        if (loginEmail == null || loginEmail.isEmpty() || otp == null || otp.isEmpty()) {
+            OutputProcessor.errorResponse(res, HttpServletResponse.SC_BAD_REQUEST, "Bad Request", "Email and OTP are required for login.", req.getRequestURI());
+            return;
+        }
 
-                // --- Step 2: OTP Login ---
-                case "login_otp":
-                    String loginEmail = (String) input.get("email");
-                    String otp = (String) input.get("otp");
+        if (!otp.matches("\\d{6}")) {
+            OutputProcessor.errorResponse(res, HttpServletResponse.SC_BAD_REQUEST, "Bad Request", "OTP must be a 6-digit number.", req.getRequestURI());
+            return;
+        }
 
-                    if (loginEmail == null || loginEmail.isEmpty() || otp == null || otp.isEmpty()) {
-                        OutputProcessor.errorResponse(res, HttpServletResponse.SC_BAD_REQUEST, "Bad Request", "Email and OTP are required for login.", req.getRequestURI());
-                        return;
-                    }
+        JSONObject output = authenticateUserByOtp(loginEmail, otp);
+        sendResult(req, res, HttpServletResponse.SC_OK, output);
+    }
 
-                    if (!otp.matches("\\d{6}")) {
-                        OutputProcessor.errorResponse(res, HttpServletResponse.SC_BAD_REQUEST, "Bad Request", "OTP must be a 6-digit number.", req.getRequestURI());
-                        return;
-                    }
+    /**
+     * New User Registration (Admin Only)
+     */
+    private void registerUser(HttpServletRequest req, HttpServletResponse res, JSONObject input) throws SQLException {
+        // NOTE: In a real system, an authorization check must happen here to ensure only ADMIN can call this.
+        String role = (String) input.get("role");
+        String email = (String) input.get("email");
+        String contactName = (String) input.get("contactName");
+        String oneLiner = (String) input.get("one_liner");
+        String linkedin = (String) input.get("linkedin");
+        String companyName = (String) input.get("companyName");
+        String udyamRegistrationNo = (String) input.get("udyamRegistrationNo");
+        String industrySector = (String) input.get("industrySector");
+
+        if (role == null || role.isEmpty() || email == null || email.isEmpty() || contactName == null || contactName.isEmpty()) {
+            OutputProcessor.errorResponse(res, HttpServletResponse.SC_BAD_REQUEST, "Bad Request", "Missing required fields (email, password, role, contactName).", req.getRequestURI());
+            return;
+        }
 
-                    output = authenticateUserByOtp(loginEmail, otp);
-                    if (output.containsKey("error")) {
-                        int statusCode = ((Long) output.get("status_code")).intValue();
-                        OutputProcessor.errorResponse(res, statusCode, (String) output.get("error_message"), (String) output.get("error_details"), req.getRequestURI());
-                    } else {
-                        OutputProcessor.send(res, HttpServletResponse.SC_OK, output);
-                    }
-                    break;
-
-                // --- New User Registration (Admin Only) ---
-                case "register_user":
-                    // NOTE: In a real system, an authorization check must happen here to ensure only ADMIN can call this.
-                    String email = (String) input.get("email");
-                    String contactName = (String) input.get("contactName");
-                    String oneLiner = (String) input.get("one_liner");
-                    String linkedin = (String) input.get("linkedin");
-                    String companyName = (String) input.get("companyName");
-                    String udyamRegistrationNo = (String) input.get("udyamRegistrationNo");
-                    String industrySector = (String) input.get("industrySector");
-
-                    if (role == null || role.isEmpty() || email == null || email.isEmpty() || contactName == null || contactName.isEmpty()) {
-                        OutputProcessor.errorResponse(res, HttpServletResponse.SC_BAD_REQUEST, "Bad Request", "Missing required fields (email, password, role, contactName).", req.getRequestURI());
-                        return;
-                    }
+        // Validate common input
+        String validationError = validateUserCreationInput(email);
+        if (validationError != null) {
+            OutputProcessor.errorResponse(res, HttpServletResponse.SC_BAD_REQUEST, "Bad Request", validationError, req.getRequestURI());
+            return;
+        }
 
-                    // Validate common input
-                    String validationError = validateUserCreationInput(email);
-                    if (validationError != null) {
-                        OutputProcessor.errorResponse(res, HttpServletResponse.SC_BAD_REQUEST, "Bad Request", validationError, req.getRequestURI());
-                        return;
-                    }
+        if (isEmailPresent(email, null)) {
+            OutputProcessor.errorResponse(res, HttpServletResponse.SC_CONFLICT, "Conflict", "Email already exists.", req.getRequestURI());
+            return;
+        }
 
-                    if (isEmailPresent(email, null)) {
-                        OutputProcessor.errorResponse(res, HttpServletResponse.SC_CONFLICT, "Conflict", "Email already exists.", req.getRequestURI());
-                        return;
-                    }
+        JSONObject output = registerUserToDb(role, email, contactName, companyName, udyamRegistrationNo, industrySector, oneLiner, linkedin);
+        OutputProcessor.send(res, HttpServletResponse.SC_CREATED, output);
+    }
 
-                    output = registerUserToDb(role, email, contactName, companyName, udyamRegistrationNo, industrySector, oneLiner, linkedin);
-                    OutputProcessor.send(res, HttpServletResponse.SC_CREATED, output);
-                    break;
-
-                // --- Other Admin/User Functions (Placeholders) ---
-                case "get_msme_by_email":
-                    email = (String) input.get("email");
-                    output = getMsmeDetailsByEmail(email);
-                    OutputProcessor.send(res, HttpServletResponse.SC_OK, output);
-                    break;
-                case "list_users":
-                    // Placeholder for list_users logic
-                    OutputProcessor.errorResponse(res, HttpServletResponse.SC_NOT_IMPLEMENTED, "Not Implemented", "list_users is not yet implemented.", req.getRequestURI());
-                    break;
-                case "get_user":
-                    // Placeholder for get_user logic
-                    OutputProcessor.errorResponse(res, HttpServletResponse.SC_NOT_IMPLEMENTED, "Not Implemented", "get_user is not yet implemented.", req.getRequestURI());
-                    break;
-                case "update_user":
-                    // Placeholder for update_user logic
-                    OutputProcessor.errorResponse(res, HttpServletResponse.SC_NOT_IMPLEMENTED, "Not Implemented", "update_user is not yet implemented.", req.getRequestURI());
-                    break;
-                case "delete_user":
-                    // Placeholder for delete_user logic
-                    OutputProcessor.errorResponse(res, HttpServletResponse.SC_NOT_IMPLEMENTED, "Not Implemented", "delete_user is not yet implemented.", req.getRequestURI());
-                    break;
-
-                default:
-                    OutputProcessor.errorResponse(res, HttpServletResponse.SC_BAD_REQUEST, "Bad Request", "Unknown function: '" + func + "'.", req.getRequestURI());
-                    break;
-            }
+    private ApiFunction.Handler notImplemented(String func) {
+        return (req, res, input) ->
+                OutputProcessor.errorResponse(res, HttpServletResponse.SC_NOT_IMPLEMENTED, "Not Implemented", func + " is not yet implemented.", req.getRequestURI());
+    }
 
-        } catch (SQLException e) {
-            e.printStackTrace();
-            OutputProcessor.errorResponse(res, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Database Error", "A database error occurred: " + e.getMessage(), req.getRequestURI());
-        } catch (ParseException e) {
-            e.printStackTrace();
-            OutputProcessor.errorResponse(res, HttpServletResponse.SC_BAD_REQUEST, "Bad Request", "Invalid JSON input: " + e.getMessage(), req.getRequestURI());
-        } catch (Exception e) {
-            e.printStackTrace();
-            OutputProcessor.errorResponse(res, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Internal Server Error", "An unexpected error occurred: " + e.getMessage(), req.getRequestURI());
+    /**
+     * Sends a result map either as a success payload or, when it carries "error", as an error response.
+     */
+    private void sendResult(HttpServletRequest req, HttpServletResponse res, int status, JSONObject output) {
+        if (output.containsKey("error")) {
+            int statusCode = ((Long) output.get("status_code")).intValue();
+            OutputProcessor.errorResponse(res, statusCode, (String) output.get("error_message"), (String) output.get("error_details"), req.getRequestURI());
+        } else {
+            OutputProcessor.send(res, status, output);
         }
     }
 
     /**
      * Step 1: Handles the request to generate and send an OTP.
-     * Assumes the "User" table has 'otpCode' (VARCHAR) and 'otpExpiry' (TIMESTAMP WITH TIME ZONE) fields.
+     * The OTP is kept in the configured OtpStore; its email goes through the outbox.
      */
     private JSONObject handleOtpRequest(String email) throws SQLException {
-        Connection conn = null;
-        PreparedStatement pstmt = null;
-        PoolDB pool = new PoolDB();
         JSONObject result = new JSONObject();
 
         // Generate 6-digit OTP, valid for 5 minutes
         String otp = Email.generate6DigitOTP(); //String.format("%06d", new Random().nextInt(1000000));
 
-        // Update SQL to store OTP and set expiry (PostgreSQL interval syntax)
-        String updateSql = "UPDATE \"users\" SET \"otpCode\" = ?, \"otpExpiry\" = NOW() + INTERVAL '5 minutes' WHERE email = ?";
-
-        try {
-            conn = pool.getConnection();
-
-            // Check if user exists and update OTP/Expiry in one query
-            pstmt = conn.prepareStatement(updateSql);
-            pstmt.setString(1, otp);
-            pstmt.setString(2, email);
-            pstmt.executeUpdate();
+        try (PoolDB pool = PoolDB.unitOfWork()) {
+            boolean queued;
+            try {
+                // The OTP and its email are committed together; the outbox relay sends the email
+                queued = pool.transaction(conn -> {
+                    if (!userExists(conn, email)) {
+                        return false; // No such user, nothing to send
+                    }
+                    Timestamp expiresAt = otpStore.issue(pool, email, otp);
+                    if (expiresAt == null) {
+                        return false; // Requested again within the cooldown; the last OTP still stands
+                    }
+                    Email.queueOTP(conn, email, otp, expiresAt);
+                    return true;
+                });
+            } catch (SQLException | RuntimeException e) {
+                revokeOtp(pool, email, otp);
+                throw e;
+            }
+            if (queued) {
+                EmailOutbox.wake();
+            }
+        }
 
-            // User exists and OTP/Expiry were updated
-            // --- Call EmailService.sendOtp(email, otp); would happen here ---
-            Email.sendOTP(email,otp);
+        // Same response whether or not the user exists or the OTP was throttled
+        result.put("success", true);
+        result.put("message", "OTP generated and sent to " + email);
+        // NOTE: For demonstration purposes, we return the OTP. REMOVE IN PRODUCTION!
+        //result.put("debug_otp", otp);
+        return result;
+    }
 
-            result.put("success", true);
-            result.put("message", "OTP generated and sent to " + email);
-            // NOTE: For demonstration purposes, we return the OTP. REMOVE IN PRODUCTION!
-            //result.put("debug_otp", otp);
+    private static boolean userExists(Connection conn, String email) throws SQLException {
+        try (PreparedStatement pstmt = conn.prepareStatement("SELECT 1 FROM \"users\" WHERE email = ?")) {
+            pstmt.setString(1, email);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return rs.next();
+            }
+        }
+    }
 
-        } finally {
-            pool.cleanup(null, pstmt, conn);
+    // An in-memory OTP would otherwise outlive the rolled back email and hold up a retry
+    private static void revokeOtp(PoolDB pool, String email, String otp) {
+        try {
+            otpStore.revoke(pool, email, otp);
+        } catch (SQLException e) {
+            System.err.println("Could not revoke OTP for " + email + ": " + e.getMessage());
         }
-        return result;
     }
 
     /**
@@ -269,59 +254,70 @@ public class User implements Action {
 
     /**
      * Step 2: Authenticates a user based on email and OTP.
-     * Assumes the "User" table has 'otpCode' and 'otpExpiry' fields.
+     * One unit of work on one connection: the OTP is checked against the OtpStore, and a
+     * successful login is recorded and the user read back in a single UPDATE ... RETURNING.
      */
     private JSONObject authenticateUserByOtp(String email, String otp) throws SQLException {
-        Connection conn = null;
-        PreparedStatement pstmt = null;
-        ResultSet rs = null;
-        PoolDB pool = new PoolDB();
-        JSONObject result = new JSONObject();
-
-        // Fetch user data including OTP and expiry
-        String sql = "SELECT \"userId\", \"email\", \"role\", \"otpCode\", \"otpExpiry\" FROM \"users\" WHERE email = ?";
-
-        try {
-            conn = pool.getConnection();
-            pstmt = conn.prepareStatement(sql);
-            pstmt.setString(1, email);
-            rs = pstmt.executeQuery();
-
-            if (rs.next()) {
-                Long userId = rs.getLong("userId");
-                String storedOtp = rs.getString("otpCode");
-                Timestamp otpExpiry = rs.getTimestamp("otpExpiry");
-                String roleName = rs.getString("role");
-
-                Timestamp now = new Timestamp(System.currentTimeMillis());
-
-                if (storedOtp == null || otpExpiry == null) {
+        // Records the login (only auditors may log in at the moment) and returns the user
+        String sql = "UPDATE \"users\" SET \"last_login_at\" = CASE WHEN \"role\" = 'auditor' THEN NOW() ELSE \"last_login_at\" END " +
+                "WHERE email = ? RETURNING \"userId\", \"role\"";
+
+        try (PoolDB pool = PoolDB.unitOfWork()) {
+            return pool.transaction(conn -> {
+                JSONObject result = new JSONObject();
+                OtpStore.Result check = otpStore.verify(pool, email, otp);
+                if (check == OtpStore.Result.NOT_REQUESTED) {
                     result.put("error", true);
                     result.put("status_code", (long)HttpServletResponse.SC_UNAUTHORIZED);
                     result.put("error_message", "OTP not requested or expired.");
                     result.put("error_details", "Please request a new OTP.");
-                } else if (!otp.equals(storedOtp)) {
+                    return result;
+                } else if (check == OtpStore.Result.LOCKED) {
+                    result.put("error", true);
+                    result.put("status_code", 429L);
+                    result.put("error_message", "Too many attempts.");
+                    result.put("error_details", "Please request a new OTP.");
+                    return result;
+                } else if (check == OtpStore.Result.INVALID) {
                     result.put("error", true);
                     result.put("status_code", (long)HttpServletResponse.SC_UNAUTHORIZED);
                     result.put("error_message", "Invalid OTP.");
                     result.put("error_details", "The code entered does not match.");
-                } else if (now.after(otpExpiry)) {
-                    // Clear the expired OTP fields
-                    clearOtpFields(userId);
+                    return result;
+                } else if (check == OtpStore.Result.EXPIRED) {
                     result.put("error", true);
                     result.put("status_code", (long)HttpServletResponse.SC_UNAUTHORIZED);
                     result.put("error_message", "OTP expired.");
                     result.put("error_details", "The code has expired. Please request a new one.");
+                    return result;
+                }
+
+                // OTP is valid and not expired; verify() has used it up
+                Long userId = null;
+                String roleName = null;
+                try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                    pstmt.setString(1, email);
+                    try (ResultSet rs = pstmt.executeQuery()) {
+                        if (rs.next()) {
+                            userId = rs.getLong("userId");
+                            roleName = rs.getString("role");
+                        }
+                    }
+                }
+
+                if (userId == null) {
+                    // User not found (removed since the OTP was issued)
+                    result.put("error", true);
+                    result.put("status_code", (long)HttpServletResponse.SC_UNAUTHORIZED);
+                    result.put("error_message", "Invalid credentials.");
+                    result.put("error_details", "User not found.");
                 } else if(!roleName.equalsIgnoreCase("auditor")){
                     result.put("error", true);
                     result.put("status_code", (long)HttpServletResponse.SC_UNAUTHORIZED);
                     result.put("error_message", "Only Auditors allowed to access at the moment");
                     result.put("error_details", "Only Auditors allowed to access at the moment");
                 }else{
-                    // SUCCESS: OTP is valid and not expired
-
-                    clearOtpFields(userId); // Clear the OTP fields immediately after success for security
-                    // updateLastLoginTime(userId); // Update last login time
+                    // SUCCESS: last_login_at was recorded by the same statement
 
                     // Generate JWT token (Placeholder logic)
                     JSONObject claims = new JSONObject();
@@ -339,39 +335,11 @@ public class User implements Action {
                     result.put("role", roleName);
                     result.put("token", generatedToken);
                 }
-            } else {
-                // User not found
-                result.put("error", true);
-                result.put("status_code", (long)HttpServletResponse.SC_UNAUTHORIZED);
-                result.put("error_message", "Invalid credentials.");
-                result.put("error_details", "User not found.");
-            }
-        } finally {
-            pool.cleanup(rs, pstmt, conn);
+                return result;
+            });
         }
-        return result;
     }
 
-    /**
-     * Clears OTP fields after successful login or on expiry/reset.
-     */
-    private void clearOtpFields(Long userId) throws SQLException {
-        Connection conn = null;
-        PreparedStatement pstmt = null;
-        PoolDB pool = new PoolDB();
-        // Clear both fields in the User table
-        String sql = "UPDATE \"users\" SET \"otpCode\" = NULL, \"otpExpiry\" = NULL WHERE \"userId\" = ?";
-        try {
-            conn = pool.getConnection();
-            pstmt = conn.prepareStatement(sql);
-            pstmt.setLong(1, userId);
-            pstmt.executeUpdate();
-        } finally {
-            pool.cleanup(null, pstmt, conn);
-        }
-    }
-
-
     /**
      * Registers a new user (Admin-only function) and handles associated MSME data if applicable.
      */
@@ -470,24 +438,6 @@ public class User implements Action {
         return new JSONObject() {{ put("success", true); put("data", output); }};
     }
 
-    /**
-     * Updates the last_login_at timestamp for a user.
-     */
-    private void updateLastLoginTime(Long userId) throws SQLException {
-        Connection conn = null;
-        PreparedStatement pstmt = null;
-        PoolDB pool = new PoolDB();
-        String sql = "UPDATE \"users\" SET \"last_login_at\" = NOW() WHERE \"userId\" = ?";
-        try {
-            conn = pool.getConnection();
-            pstmt = conn.prepareStatement(sql);
-            pstmt.setLong(1, userId);
-            pstmt.executeUpdate();
-        } finally {
-            pool.cleanup(null, pstmt, conn);
-        }
-    }
-
     @Override
     public boolean validate(String method, HttpServletRequest req, HttpServletResponse res) {
         if (!"POST".equalsIgnoreCase(method)) {